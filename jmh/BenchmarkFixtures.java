@@ -0,0 +1,231 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+import p2p.bench.Fixtures;
+
+//Fixtures for the JMH benchmarks of the node's hot paths. Each method sets up one case in a temporary directory
+//and returns the operation the benchmark invokes, whose result the benchmark passes to a Blackhole. It sits in the
+//default package to reach the node's package-private API and is only compiled by the jmh profile.
+public class BenchmarkFixtures implements Fixtures
+{
+    //Class constants.
+    private final static int PORT = 20999;
+    private final static int SMALL_FILE = 64 * 1024;
+    private final static int LARGE_FILE = 64 * 1024 * 1024;
+
+    //Instance variables and constants.
+    private final Path base;
+    private final Deque<Closeable> resources;
+
+    public BenchmarkFixtures() throws IOException
+    {
+        this.base = Files.createTempDirectory("p2p-bench");
+        this.resources = new ArrayDeque<>();
+        //The nodes print to the console, which would only slow the benchmarks down.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    //Keyword lookup in the in-memory index of a catalog with the given number of entries, for a keyword that
+    //matches or one that does not.
+    @Override
+    public Callable<Object> localSearch(int size, boolean hit)
+    {
+        int vocabulary = Math.max(100, size / 100);
+        KeywordIndex index = new KeywordIndex(base.resolve("none"), new ContentStore(base));
+        Random random = new Random(size);
+        for(int i = 0; i < size; i++)
+        {
+            index.add("file" + i + ".txt kw" + random.nextInt(vocabulary) + " kw" + random.nextInt(vocabulary));
+        }
+        if(!hit)
+        {
+            return () -> index.search("absent");
+        }
+        int[] next = {0};
+        return () -> index.search("KW" + (next[0]++ % vocabulary));
+    }
+
+    //Startup cost of the content store for a catalog of single-chunk files: mapping and decoding the snapshot,
+    //replaying the log and rebuilding the keyword index from it.
+    @Override
+    public Callable<Object> storeLoad(int size) throws IOException
+    {
+        Path home = Files.createDirectories(base.resolve("store" + size));
+        ContentStore store = new ContentStore(home);
+        store.load();
+        int vocabulary = Math.max(100, size / 100);
+        Random random = new Random(size);
+        for(int i = 0; i < size; i++)
+        {
+            byte[] hash = new byte[FileManifest.HASH_SIZE];
+            random.nextBytes(hash);
+            store.put("file" + i + ".txt", "kw" + random.nextInt(vocabulary) + " kw" + random.nextInt(vocabulary), i,
+                    new FileManifest(random.nextInt(FileManifest.CHUNK_SIZE), hash));
+        }
+        store.close();
+        return () ->
+        {
+            ContentStore loaded = new ContentStore(home);
+            loaded.load();
+            KeywordIndex index = new KeywordIndex(home.resolve("availableFiles.txt"), loaded);
+            index.load();
+            loaded.close();
+            return index.getKeywords().size();
+        };
+    }
+
+    //Encoding or decoding of a SEARCH or a REPLY, the most frequent messages.
+    @Override
+    public Callable<Object> codec(String type, boolean decode)
+    {
+        SearchId searchID = SearchId.create(InetAddress.getLoopbackAddress(), PORT);
+        FileManifest manifest = new FileManifest(16L * FileManifest.CHUNK_SIZE, new byte[16 * FileManifest.HASH_SIZE]);
+        Message message = type.equalsIgnoreCase("reply")
+                ? Message.reply(searchID, 3, "file.txt keyword other", "127.0.0.1:5000", manifest)
+                : Message.search(searchID, 8, "keyword");
+        if(!decode)
+        {
+            return () -> WireCodec.encode(message);
+        }
+        ByteBuffer frame = WireCodec.encode(message);
+        return () -> WireCodec.decode(frame.duplicate());
+    }
+
+    //The duplicate-query check every node makes for each search it receives, for a new or a repeated search ID.
+    @Override
+    public Callable<Object> duplicateCheck(boolean duplicate)
+    {
+        DuplicateCache<SearchId, String> previousSearches = new DuplicateCache<>(16000, 100000);
+        InetAddress address = InetAddress.getLoopbackAddress();
+        if(!duplicate)
+        {
+            return () -> previousSearches.putIfAbsent(SearchId.create(address, PORT), "127.0.0.1:5000");
+        }
+        SearchId seen = SearchId.create(address, PORT);
+        previousSearches.putIfAbsent(seen, "127.0.0.1:5000");
+        return () -> previousSearches.putIfAbsent(seen, "127.0.0.1:5000");
+    }
+
+    //A search arriving at a node that neither matches it nor has anyone to forward it to: decoding, the duplicate
+    //check, the local lookup and routing, without the network. The client end only has to stay open.
+    @Override
+    public Callable<Object> dispatch() throws IOException
+    {
+        Path home = Files.createDirectories(base.resolve("dispatch"));
+        Files.write(home.resolve("availableFiles.txt"), "file.txt keyword\n".getBytes());
+        Node node = new Node("dispatch", benchmarkConfig(PORT));
+        ServerSocketChannel server = keep(ServerSocketChannel.open());
+        Selector selector = keep(Selector.open());
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        keep(SocketChannel.open(server.getLocalAddress()));
+        SocketChannel accepted = keep(server.accept());
+        accepted.configureBlocking(false);
+        SelectionKey key = accepted.register(selector, SelectionKey.OP_READ);
+        Connection connection = new Connection(accepted, key);
+        InetAddress address = InetAddress.getLoopbackAddress();
+        return () ->
+        {
+            ByteBuffer frame = WireCodec.encode(Message.search(SearchId.create(address, PORT + 1), 4, "absent"));
+            Message message = WireCodec.decode(frame);
+            node.clientHandler(connection, message);
+            return message;
+        };
+    }
+
+    //Whole-file download from a node over loopback of a small or large random file, which exercises sendFile's
+    //zero-copy path and chunk verification, or of a large text file, which also exercises the choice between
+    //compressed and plain chunks.
+    @Override
+    public Callable<Object> download(String file) throws IOException
+    {
+        Path home = Files.createDirectories(base.resolve("server"));
+        Random random = new Random(1);
+        String name;
+        if(file.equalsIgnoreCase("text"))
+        {
+            name = "file" + LARGE_FILE + ".txt";
+            StringBuilder text = new StringBuilder();
+            while(text.length() < LARGE_FILE)
+            {
+                text.append("line ").append(text.length()).append(" of a shared text file, kw").append(random.nextInt(1000))
+                        .append('\n');
+            }
+            Files.write(home.resolve(name), text.substring(0, LARGE_FILE).getBytes());
+        }
+        else
+        {
+            int size = file.equalsIgnoreCase("large") ? LARGE_FILE : SMALL_FILE;
+            name = "file" + size + ".bin";
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            Files.write(home.resolve(name), content);
+        }
+        Files.write(home.resolve("availableFiles.txt"), new byte[0]);
+        Node node = new Node("server", benchmarkConfig(PORT + 2));
+        node.run();
+        Path target = base.resolve("download.bin");
+        Path sidecar = base.resolve("download.progress");
+        FileManifest manifest = FileManifest.of(home.resolve(name));
+        List<String> peers = Collections.singletonList(node.getAddress());
+        return () ->
+        {
+            Files.deleteIfExists(target);
+            Files.deleteIfExists(sidecar);
+            try(DownloadProgress progress = DownloadProgress.open(sidecar, manifest))
+            {
+                if(!new SwarmDownload(name, manifest, peers, target, progress).run())
+                {
+                    throw new IOException("Download of " + name + " did not complete");
+                }
+            }
+            return target;
+        };
+    }
+
+    private NodeConfig benchmarkConfig(int port)
+    {
+        return NodeConfig.defaults().withPort(port).withBaseDirectory(base)
+                .withBindAddress(InetAddress.getLoopbackAddress()).withCatalogWatching(false);
+    }
+
+    private <T extends Closeable> T keep(T resource)
+    {
+        resources.push(resource);
+        return resource;
+    }
+
+    //Closes the sockets of the fixtures and deletes the temporary directory. Nodes keep running until the JVM exits.
+    @Override
+    public void close()
+    {
+        Closeable resource;
+        while((resource = resources.poll()) != null)
+        {
+            try
+            {
+                resource.close();
+            }
+            catch(IOException e)
+            {
+                System.err.println("Error closing benchmark fixture: " + e.getMessage());
+            }
+        }
+        try(Stream<Path> paths = Files.walk(base))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error deleting " + base + ": " + e.getMessage());
+        }
+    }
+}
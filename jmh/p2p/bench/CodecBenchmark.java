@@ -0,0 +1,49 @@
+package p2p.bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+//Encoding and decoding of the most frequent messages.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark
+{
+    @Param({"search", "reply"})
+    public String type;
+
+    private Fixtures fixtures;
+    private Callable<Object> encode;
+    private Callable<Object> decode;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        fixtures = Fixtures.create();
+        encode = fixtures.codec(type, false);
+        decode = fixtures.codec(type, true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(encode.call());
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(decode.call());
+    }
+}
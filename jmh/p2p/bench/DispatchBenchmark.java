@@ -0,0 +1,39 @@
+package p2p.bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+//A search handled by clientHandler on a node that neither matches it nor forwards it, without the network.
+//The node's threads outlive the benchmark, so the forked JVM is told not to wait for them.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+@State(Scope.Benchmark)
+public class DispatchBenchmark
+{
+    private Fixtures fixtures;
+    private Callable<Object> search;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        fixtures = Fixtures.create();
+        search = fixtures.dispatch();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public void search(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(search.call());
+    }
+}
@@ -0,0 +1,43 @@
+package p2p.bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+//Whole-file downloads over loopback from a node running in the same JVM: a 64 KiB and a 64 MiB random file, and
+//a 64 MiB text file, which compresses. Divide the file size by the time per operation for the throughput.
+//The node's threads outlive the benchmark, so the forked JVM is told not to wait for them.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djmh.shutdownTimeout=0")
+@State(Scope.Benchmark)
+public class DownloadBenchmark
+{
+    @Param({"small", "large", "text"})
+    public String file;
+
+    private Fixtures fixtures;
+    private Callable<Object> download;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        fixtures = Fixtures.create();
+        download = fixtures.download(file);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public void download(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(download.call());
+    }
+}
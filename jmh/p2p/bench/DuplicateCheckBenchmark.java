@@ -0,0 +1,46 @@
+package p2p.bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+//The duplicate-query check against previousSearches that every node makes for each search it receives.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DuplicateCheckBenchmark
+{
+    private Fixtures fixtures;
+    private Callable<Object> newSearch;
+    private Callable<Object> duplicate;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        fixtures = Fixtures.create();
+        newSearch = fixtures.duplicateCheck(false);
+        duplicate = fixtures.duplicateCheck(true);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public void newSearch(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(newSearch.call());
+    }
+
+    @Benchmark
+    public void duplicate(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(duplicate.call());
+    }
+}
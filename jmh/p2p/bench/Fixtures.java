@@ -0,0 +1,28 @@
+package p2p.bench;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+
+//Cases the benchmarks time, each set up in a temporary directory and returned as the operation a benchmark invokes.
+//Implemented by BenchmarkFixtures, which must be in the default package with the node to use it, while JMH needs
+//benchmarks in a named package. A default-package class cannot be named from here, so create() loads it by name
+//once and everything after that is an ordinary call.
+public interface Fixtures extends Closeable
+{
+    static Fixtures create() throws ReflectiveOperationException
+    {
+        return (Fixtures) Class.forName("BenchmarkFixtures").getConstructor().newInstance();
+    }
+
+    Callable<Object> localSearch(int size, boolean hit);
+
+    Callable<Object> storeLoad(int size) throws Exception;
+
+    Callable<Object> codec(String type, boolean decode);
+
+    Callable<Object> duplicateCheck(boolean duplicate);
+
+    Callable<Object> dispatch() throws Exception;
+
+    Callable<Object> download(String file) throws Exception;
+}
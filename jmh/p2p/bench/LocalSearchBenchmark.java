@@ -0,0 +1,49 @@
+package p2p.bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+//Keyword lookups in the in-memory index for growing catalogs, for a keyword that matches and one that does not.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LocalSearchBenchmark
+{
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    private Fixtures fixtures;
+    private Callable<Object> hit;
+    private Callable<Object> miss;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        fixtures = Fixtures.create();
+        hit = fixtures.localSearch(entries, true);
+        miss = fixtures.localSearch(entries, false);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public void hit(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(hit.call());
+    }
+
+    @Benchmark
+    public void miss(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(miss.call());
+    }
+}
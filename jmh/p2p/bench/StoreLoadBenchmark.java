@@ -0,0 +1,42 @@
+package p2p.bench;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+//Startup cost of the content store for growing catalogs of single-chunk files: mapping and decoding the snapshot
+//and replaying the log.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreLoadBenchmark
+{
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    private Fixtures fixtures;
+    private Callable<Object> load;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        fixtures = Fixtures.create();
+        load = fixtures.storeLoad(entries);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        fixtures.close();
+    }
+
+    @Benchmark
+    public void load(Blackhole blackhole) throws Exception
+    {
+        blackhole.consume(load.call());
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+//Attenuated Bloom filter summarizing the keywords reachable through a node.
+//Level 0 holds the node's own keywords, and level i the keywords of nodes i hops further away,
+//so a neighbor's filter tells whether a query could possibly be answered within a given radius.
+public class AttenuatedBloomFilter
+{
+    //Class constants.
+    public final static int DEPTH = 3;
+    private final static int BITS = 1 << 16;
+    private final static int HASHES = 4;
+    private final static int WORDS = BITS / Long.SIZE;
+
+    //Instance variables and constants.
+    private final long[][] levels;
+    private final long createdAt;
+
+    public AttenuatedBloomFilter()
+    {
+        this(new long[DEPTH][WORDS]);
+    }
+
+    private AttenuatedBloomFilter(long[][] levels)
+    {
+        this.levels = levels;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    //When the filter was built locally or received from a neighbor.
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    public void add(int level, String keyword)
+    {
+        long hash = hash(keyword);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 0; i < HASHES; i++)
+        {
+            int bit = Math.floorMod(h1 + i * h2, BITS);
+            levels[level][bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(int level, String keyword)
+    {
+        long hash = hash(keyword);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for(int i = 0; i < HASHES; i++)
+        {
+            int bit = Math.floorMod(h1 + i * h2, BITS);
+            if((levels[level][bit >>> 6] & (1L << bit)) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //True if the keyword may be held by a node within the given number of hops, counting the sender as one hop.
+    public boolean mightReach(String keyword, int hops)
+    {
+        for(int level = 0; level < Math.min(hops, DEPTH); level++)
+        {
+            if(mightContain(level, keyword))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Folds a neighbor's filter in one level further out than the neighbor itself sees it.
+    public void mergeFromNeighbor(AttenuatedBloomFilter neighbor)
+    {
+        for(int level = 1; level < DEPTH; level++)
+        {
+            for(int word = 0; word < WORDS; word++)
+            {
+                levels[level][word] |= neighbor.levels[level - 1][word];
+            }
+        }
+    }
+
+    public AttenuatedBloomFilter copy()
+    {
+        long[][] copied = new long[DEPTH][];
+        for(int level = 0; level < DEPTH; level++)
+        {
+            copied[level] = levels[level].clone();
+        }
+        return new AttenuatedBloomFilter(copied);
+    }
+
+    public byte[] toBytes()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(DEPTH * WORDS * Long.BYTES);
+        for(long[] level: levels)
+        {
+            buffer.asLongBuffer().put(level);
+            buffer.position(buffer.position() + WORDS * Long.BYTES);
+        }
+        return buffer.array();
+    }
+
+    public static AttenuatedBloomFilter fromBytes(byte[] data) throws IOException
+    {
+        if(data.length != DEPTH * WORDS * Long.BYTES)
+        {
+            throw new IOException("Unexpected summary size " + data.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long[][] levels = new long[DEPTH][WORDS];
+        for(long[] level: levels)
+        {
+            buffer.asLongBuffer().get(level);
+            buffer.position(buffer.position() + WORDS * Long.BYTES);
+        }
+        return new AttenuatedBloomFilter(levels);
+    }
+
+    //64-bit FNV-1a over the lower-cased keyword with a final avalanche step, split into two halves for double hashing.
+    private static long hash(String keyword)
+    {
+        String key = keyword.toLowerCase(Locale.ROOT);
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++)
+        {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//Compression of file transfers, negotiated per file request. The downloader lists the codecs it accepts and the
+//server picks one for the file, or none for formats that are already compressed. A range is compressed in
+//independent blocks of BLOCK_SIZE bytes, so every chunk request stands alone and resumed or parallel downloads
+//work as before. A compressed response covers at most MAX_RANGE bytes, one download chunk, and a request for more
+//is answered with the first MAX_RANGE bytes and their length. A block that does not shrink is sent stored, and so is
+//the rest of its range, since content that does not compress at the start of a chunk rarely does further on and
+//deflating it is the expensive case.
+//Deflate at its fastest level is the only codec since it ships with the JDK; the codecs are a bit mask so others
+//can be added without changing the request.
+//Response when codecs were offered: length (8 bytes) | codec (1 byte) | the range raw, or as blocks of
+//compressed length (4 bytes, negative for a stored block) | bytes.
+public final class BlockCompression
+{
+    //Class constants.
+    public final static int NONE = 0;
+    public final static int DEFLATE = 1;
+    public final static int BLOCK_SIZE = 64 * 1024;
+    public final static int MAX_RANGE = FileManifest.CHUNK_SIZE;
+    private final static Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList("7z", "avi", "bz2", "docx", "flac",
+            "gif", "gz", "jar", "jpeg", "jpg", "mkv", "mov", "mp3", "mp4", "ogg", "pdf", "png", "pptx", "rar", "tgz",
+            "webm", "webp", "xlsx", "xz", "zip", "zst"));
+
+    private BlockCompression()
+    {
+    }
+
+    //Codec the server uses for the file out of those the downloader accepts.
+    public static int choose(int accepted, String file)
+    {
+        String type = file.substring(file.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        if((accepted & DEFLATE) == 0 || COMPRESSED_TYPES.contains(type))
+        {
+            return NONE;
+        }
+        return DEFLATE;
+    }
+
+    //Reads count bytes of the file from position and returns the whole response for them, header included.
+    //Count is at most MAX_RANGE.
+    public static ByteBuffer compress(FileChannel channel, long position, long count) throws IOException
+    {
+        if(count < 0 || count > MAX_RANGE)
+        {
+            throw new IllegalArgumentException("cannot compress a range of " + count + " bytes");
+        }
+        int blocks = (int) ((count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        ByteBuffer response = ByteBuffer.allocate(Long.BYTES + 1 + blocks * Integer.BYTES + (int) count);
+        response.putLong(count).put((byte) DEFLATE);
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] compressed = new byte[BLOCK_SIZE];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        boolean compressing = true;
+        try
+        {
+            for(long done = 0; done < count; )
+            {
+                int length = (int) Math.min(BLOCK_SIZE, count - done);
+                ByteBuffer in = ByteBuffer.wrap(block, 0, length);
+                while(in.hasRemaining())
+                {
+                    if(channel.read(in, position + done + in.position()) < 0)
+                    {
+                        throw new IOException("File ended before the requested range");
+                    }
+                }
+                int size = length;
+                if(compressing)
+                {
+                    deflater.reset();
+                    deflater.setInput(block, 0, length);
+                    deflater.finish();
+                    size = deflater.deflate(compressed);
+                    compressing = deflater.finished() && size < length;
+                }
+                if(compressing)
+                {
+                    response.putInt(size).put(compressed, 0, size);
+                }
+                else
+                {
+                    response.putInt(-length).put(block, 0, length);
+                }
+                done += length;
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+        response.flip();
+        return response;
+    }
+
+    //Reads a block-compressed range of length bytes into the buffer. Returns the number of bytes read off the wire.
+    public static long decompress(DataInputStream in, byte[] buffer, int length) throws IOException
+    {
+        byte[] compressed = new byte[BLOCK_SIZE];
+        long received = 0;
+        Inflater inflater = new Inflater();
+        try
+        {
+            for(int done = 0; done < length; )
+            {
+                int blockLength = Math.min(BLOCK_SIZE, length - done);
+                int size = in.readInt();
+                received += Integer.BYTES;
+                if(size < 0)
+                {
+                    if(-size != blockLength)
+                    {
+                        throw new IOException("stored block of " + -size + " bytes where " + blockLength + " were expected");
+                    }
+                    in.readFully(buffer, done, blockLength);
+                    received += blockLength;
+                }
+                else
+                {
+                    if(size > BLOCK_SIZE)
+                    {
+                        throw new IOException("compressed block of " + size + " bytes");
+                    }
+                    in.readFully(compressed, 0, size);
+                    received += size;
+                    inflater.reset();
+                    inflater.setInput(compressed, 0, size);
+                    if(inflater.inflate(buffer, done, blockLength) != blockLength || !inflater.finished())
+                    {
+                        throw new IOException("compressed block does not hold " + blockLength + " bytes");
+                    }
+                }
+                done += blockLength;
+            }
+        }
+        catch(DataFormatException e)
+        {
+            throw new IOException("corrupt compressed block: " + e.getMessage());
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return received;
+    }
+}
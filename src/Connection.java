@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+//A non-blocking connection serviced by the node's selector thread.
+//Incoming bytes are decoded into messages, and writes queued by worker threads are flushed once the channel is writable.
+//File contents are queued as regions and sent with FileChannel.transferTo so they never pass through the heap.
+//Connections uploading files are throttled and write at most BULK_QUANTUM bytes each time the selector services
+//them, so the selector thread gets back to messages for other connections quickly.
+public class Connection
+{
+    //Class constants.
+    private final static int BUFFER_SIZE = 8192;
+    private final static int BULK_QUANTUM = 64 * 1024;
+    private final static int IPTOS_THROUGHPUT = 0x08;
+
+    //Limits the rate at which a connection sends. Used by the selector thread.
+    public interface Throttle
+    {
+        //Bytes that may be sent now.
+        long available();
+
+        void spend(long bytes);
+
+        //Arranges for connection.resume() to be called once the given number of bytes may be sent.
+        void resumeLater(Connection connection, long bytes);
+    }
+
+    //Instance variables and constants.
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final String remoteAddress;
+    private final String localAddress;
+    private final Queue<Pending> writeQueue;
+    private final CountDownLatch closed;
+    private ByteBuffer readBuffer;
+    private boolean closeAfterWrite;
+    private volatile Throttle throttle;
+    private boolean paused;
+    private volatile String peer;
+    private volatile boolean departed;
+
+    public Connection(SocketChannel channel, SelectionKey key) throws IOException
+    {
+        this.channel = channel;
+        this.key = key;
+        this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+        this.localAddress = channel.socket().getLocalAddress().getHostAddress();
+        this.writeQueue = new ConcurrentLinkedQueue<>();
+        this.closed = new CountDownLatch(1);
+        this.readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.closeAfterWrite = false;
+        this.peer = remoteAddress + ":" + channel.socket().getPort();
+    }
+
+    public String getRemoteAddress()
+    {
+        return remoteAddress;
+    }
+
+    public String getLocalAddress()
+    {
+        return localAddress;
+    }
+
+    //The "<address>:<port>" of the node at the other end, once known from its join message or because this
+    //node opened the connection to it. Until then, the connection's remote socket address.
+    public String getPeer()
+    {
+        return peer;
+    }
+
+    public void setPeer(String peer)
+    {
+        this.peer = peer;
+    }
+
+    //Throttles everything written from now on and marks the connection as bulk traffic, which the selector
+    //services after other connections and the network may queue behind interactive traffic.
+    public void setThrottle(Throttle throttle)
+    {
+        this.throttle = throttle;
+        try
+        {
+            //Writes end on quantum and token boundaries rather than on segment boundaries, and Nagle's algorithm
+            //would hold back each write's last partial segment until the previous one is acknowledged.
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.IP_TOS, IPTOS_THROUGHPUT);
+        }
+        catch(IOException | UnsupportedOperationException e)
+        {
+            System.err.println("Error marking bulk connection: " + e.getMessage());
+        }
+    }
+
+    public boolean isBulk()
+    {
+        return throttle != null;
+    }
+
+    //Whether the peer announced its departure on this connection, so its closing is expected.
+    public boolean hasDeparted()
+    {
+        return departed;
+    }
+
+    public void markDeparted()
+    {
+        this.departed = true;
+    }
+
+    //Reads whatever is available on the channel and returns the complete messages received so far.
+    //Returns null once the peer has closed its end of the connection.
+    public List<Message> read() throws IOException
+    {
+        if(channel.read(readBuffer) == -1)
+        {
+            return null;
+        }
+        List<Message> messages = new ArrayList<>();
+        readBuffer.flip();
+        Message message;
+        while((message = WireCodec.decode(readBuffer)) != null)
+        {
+            messages.add(message);
+        }
+        readBuffer.compact();
+
+        //A frame larger than the buffer must not stall the connection, so grow the buffer instead.
+        if(!readBuffer.hasRemaining())
+        {
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        return messages;
+    }
+
+    //Queues a message to be written by the selector thread. Safe to call from any thread.
+    public void send(Message message)
+    {
+        write(WireCodec.encode(message));
+    }
+
+    //Queues raw bytes to be written by the selector thread. Safe to call from any thread.
+    public void write(ByteBuffer buffer)
+    {
+        enqueue(new PendingBuffer(buffer));
+    }
+
+    //Queues part of a file to be sent with zero-copy transfers. The file channel is closed once it has been sent.
+    public void transfer(FileChannel file, long position, long count)
+    {
+        enqueue(new PendingRegion(file, position, position + count));
+    }
+
+    //Runs the task on the selector thread once everything queued before it has been written, or once the
+    //connection has closed without writing it.
+    public void whenWritten(Runnable task)
+    {
+        enqueue(new PendingTask(task));
+    }
+
+    private void enqueue(Pending pending)
+    {
+        writeQueue.add(pending);
+        synchronized(this)
+        {
+            if(key.isValid())
+            {
+                if(!paused)
+                {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    key.selector().wakeup();
+                }
+                return;
+            }
+        }
+        //Closed meanwhile, so nothing will flush the queue.
+        releaseAll();
+    }
+
+    //Writes again after the throttle paused the connection. Safe to call from any thread.
+    public synchronized void resume()
+    {
+        paused = false;
+        if(key.isValid() && !writeQueue.isEmpty())
+        {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+    }
+
+    //Writes as much of the queued data as the channel and the throttle accept. Called by the selector thread only.
+    public void flush() throws IOException
+    {
+        Throttle throttle = this.throttle;
+        long budget = (throttle == null) ? Long.MAX_VALUE : Math.min(BULK_QUANTUM, throttle.available());
+        Pending pending;
+        while((pending = writeQueue.peek()) != null)
+        {
+            long written = pending.writeTo(channel, budget);
+            if(throttle != null)
+            {
+                throttle.spend(written);
+            }
+            budget -= written;
+            if(!pending.isDone())
+            {
+                //Either the socket is full, or this connection's share of the round is used up, or the throttle
+                //ran out of bytes, in which case the connection waits for the throttle instead of the socket.
+                if(budget == 0 && throttle.available() == 0)
+                {
+                    synchronized(this)
+                    {
+                        paused = true;
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    throttle.resumeLater(this, BULK_QUANTUM);
+                }
+                return;
+            }
+            writeQueue.poll();
+            pending.release();
+        }
+        synchronized(this)
+        {
+            if(writeQueue.isEmpty())
+            {
+                if(closeAfterWrite)
+                {
+                    close();
+                }
+                else
+                {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+    }
+
+    //Closes the connection once all queued data has been written.
+    public synchronized void closeWhenFlushed()
+    {
+        closeAfterWrite = true;
+        if(writeQueue.isEmpty())
+        {
+            close();
+        }
+        else if(key.isValid())
+        {
+            key.interestOps(SelectionKey.OP_WRITE);
+            key.selector().wakeup();
+        }
+    }
+
+    public boolean isOpen()
+    {
+        return channel.isOpen();
+    }
+
+    //Waits up to the given time for the connection to be closed.
+    public void awaitClosed(long timeoutMillis)
+    {
+        try
+        {
+            closed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void close()
+    {
+        key.cancel();
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+        releaseAll();
+        closed.countDown();
+    }
+
+    private void releaseAll()
+    {
+        Pending pending;
+        while((pending = writeQueue.poll()) != null)
+        {
+            pending.release();
+        }
+    }
+
+    //Data waiting to be written to the channel.
+    private interface Pending
+    {
+        //Writes as much as the channel accepts, up to max bytes, and returns the number of bytes written.
+        long writeTo(SocketChannel channel, long max) throws IOException;
+
+        boolean isDone();
+
+        void release();
+    }
+
+    private static class PendingBuffer implements Pending
+    {
+        private final ByteBuffer buffer;
+
+        PendingBuffer(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel, long max) throws IOException
+        {
+            if(buffer.remaining() <= max)
+            {
+                return channel.write(buffer);
+            }
+            ByteBuffer part = buffer.duplicate();
+            part.limit(part.position() + (int) max);
+            int written = channel.write(part);
+            buffer.position(buffer.position() + written);
+            return written;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release()
+        {
+        }
+    }
+
+    private static class PendingRegion implements Pending
+    {
+        private final FileChannel file;
+        private final long end;
+        private long position;
+
+        PendingRegion(FileChannel file, long position, long end)
+        {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel, long max) throws IOException
+        {
+            long start = position;
+            while(position < end && position - start < max)
+            {
+                long sent = file.transferTo(position, Math.min(end - position, max - (position - start)), channel);
+                if(sent <= 0)
+                {
+                    if(position >= file.size())
+                    {
+                        throw new IOException("File shrank while it was being sent");
+                    }
+                    break;
+                }
+                position += sent;
+            }
+            return position - start;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return position >= end;
+        }
+
+        @Override
+        public void release()
+        {
+            try
+            {
+                file.close();
+            }
+            catch(IOException e)
+            {
+                System.err.println("Error closing file: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class PendingTask implements Pending
+    {
+        private final Runnable task;
+
+        PendingTask(Runnable task)
+        {
+            this.task = task;
+        }
+
+        @Override
+        public long writeTo(SocketChannel channel, long max)
+        {
+            return 0;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return true;
+        }
+
+        @Override
+        public void release()
+        {
+            task.run();
+        }
+    }
+}
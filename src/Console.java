@@ -0,0 +1,130 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+//The interactive console, driving a node through its NodeClient. Commands return to the prompt at once: replies
+//are printed as they arrive, and a download can be started on any of them while the search goes on.
+public class Console
+{
+    //Instance variables and constants.
+    private final NodeClient client;
+    private volatile Search lastSearch;
+
+    public Console(NodeClient client)
+    {
+        this.client = client;
+    }
+
+    //Joins the network through the "host[:port]" node before any command is read.
+    public void join(String host)
+    {
+        try
+        {
+            client.join(host).join();
+            System.out.println("Server neighbors: " + client.getNode().getNeighbors());
+        }
+        catch(CompletionException e)
+        {
+            System.err.println("Error joining network! " + e.getCause());
+        }
+    }
+
+    //Client listens for commands issued by the user until program termination.
+    public void run()
+    {
+        Node node = client.getNode();
+        Scanner scan = new Scanner(System.in);
+        while(scan.hasNextLine())
+        {
+            String line = scan.nextLine();
+            String[] tokens = line.split(" ");
+            if(tokens[0].equalsIgnoreCase("search"))
+            {
+                Search search = client.search(tokens[1], (tokens.length > 2) ? Integer.parseInt(tokens[2]) : node.getRepliesWanted());
+                show(search, () -> (search.getReplyCount() > 0)
+                        ? "File found at hop count: " + search.getHopCount()
+                        : "Search terminated at hop count " + search.getHopCount() + " with no results found.");
+            }
+            else if(tokens[0].equalsIgnoreCase("walk"))
+            {
+                Search search = client.walk(tokens[1], (tokens.length > 2) ? Integer.parseInt(tokens[2]) : node.getRepliesWanted(),
+                        (tokens.length > 3) ? Integer.parseInt(tokens[3]) : Node.DEFAULT_WALKERS);
+                show(search, () -> (search.getReplyCount() > 0)
+                        ? "Random walk found " + search.getReplyCount() + " replies within " + search.getStepsGranted() + " steps."
+                        : "Random walk terminated after " + search.getStepsGranted() + " steps with no results found.");
+            }
+            else if(tokens[0].equalsIgnoreCase("lookup"))
+            {
+                Search search = client.lookup(tokens[1]);
+                show(search, () -> (search.getReplyCount() > 0)
+                        ? "Found " + tokens[1] + " in the DHT."
+                        : "Nothing named " + tokens[1] + " was found in the DHT.");
+            }
+            else if(tokens[0].equalsIgnoreCase("download"))
+            {
+                download(Integer.parseInt(tokens[1]));
+            }
+            else if(tokens[0].equalsIgnoreCase("exit"))
+            {
+                client.leave().join();
+                System.out.println("Exiting the P2P system.\n\n");
+                System.exit(0);
+            }
+            else
+            {
+                System.out.println("Invalid command.");
+            }
+        }
+        scan.close();
+    }
+
+    //1-based position of the reply among the search's replies.
+    private static int positionOf(Search search, Reply reply)
+    {
+        List<Reply> replies = search.getReplies();
+        for(int i = 0; i < replies.size(); i++)
+        {
+            if(replies.get(i) == reply)
+            {
+                return i + 1;
+            }
+        }
+        return replies.size();
+    }
+
+    //Prints each reply of the search as soon as it arrives, numbered for the download command, and the outcome
+    //once the search finishes.
+    private void show(Search search, Supplier<String> outcome)
+    {
+        lastSearch = search;
+        //Numbered by position among the search's replies, which is what download takes, even when replies
+        //arrive on several threads at once.
+        search.addListener(reply -> System.out.println(positionOf(search, reply) + ": " + reply));
+        search.getResult().thenAccept(replies ->
+        {
+            System.out.println(outcome.get());
+            if(!replies.isEmpty())
+            {
+                System.out.println("\n" + replies.size() + ((replies.size() == 1) ? " reply was received." : " replies were received."));
+                System.out.println("Which reply would you like to choose to download? Please enter the command download <replyNum>");
+            }
+        });
+    }
+
+    //Downloads the file listed in the selected reply of the most recent search, in the background.
+    private void download(int replyNum)
+    {
+        Search search = lastSearch;
+        List<Reply> receivedReplies = (search == null) ? Collections.<Reply>emptyList() : search.getReplies();
+        if(replyNum < 1 || replyNum > receivedReplies.size())
+        {
+            System.out.println("Cannot download file. No such reply has been received.");
+            return;
+        }
+        Reply selected = receivedReplies.get(replyNum - 1);
+        System.out.println("You selected reply " + replyNum + ": " + selected);
+        client.download(selected, receivedReplies);
+    }
+}
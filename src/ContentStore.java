@@ -0,0 +1,354 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Persistent record of the files a node shares: each file's keywords, size, modification time and manifest, looked up
+//by name or by content. It is the node's catalog: the keyword index is rebuilt from it at startup, and
+//availableFiles.txt is only read to import files the store does not know yet. Changes are appended to store.log,
+//and once the log holds more records than the store has files, the whole store is written to store.snapshot and
+//the log starts over. At startup the snapshot is memory-mapped and
+//decoded in one pass and the log replayed on top, so a node sharing hundreds of thousands of files starts without
+//rehashing or re-reading any of them and can put their hashes in replies straight away.
+//Record layout: op (1 byte) | name length (2 bytes) | UTF-8 name | and for PUT: keywords length (2 bytes) |
+//UTF-8 keywords | size (8 bytes) | modified (8 bytes) | chunk hashes.
+//The snapshot is a magic number and record count followed by PUT records. A torn record at the end of the log,
+//left by a crash mid-append, is dropped, and so is anything after a record that fails to decode.
+public class ContentStore implements Closeable
+{
+    //Class constants.
+    private final static int MAGIC = 0x5032504B;
+    private final static byte PUT = 1;
+    private final static byte REMOVE = 2;
+    private final static int MIN_LOG_RECORDS = 1024;
+    private final static int MAX_STRING_BYTES = 0xFFFF;
+
+    //A shared file as last hashed.
+    public static final class Entry
+    {
+        private final String name;
+        private final String keywords;
+        private final long lastModified;
+        private final FileManifest manifest;
+
+        Entry(String name, String keywords, long lastModified, FileManifest manifest)
+        {
+            this.name = name;
+            this.keywords = keywords;
+            this.lastModified = lastModified;
+            this.manifest = manifest;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        //The keywords the file is found by, separated by spaces. Empty if it has none besides its name.
+        public String getKeywords()
+        {
+            return keywords;
+        }
+
+        public FileManifest getManifest()
+        {
+            return manifest;
+        }
+    }
+
+    //Instance variables and constants.
+    private final Path home;
+    private final Path snapshot;
+    private final Path log;
+    private final Map<String, Entry> byName;
+    private final Map<FileManifest, List<String>> byContent;
+    private DataOutputStream logOut;
+    private int logRecords;
+
+    public ContentStore(Path home)
+    {
+        this.home = home;
+        this.snapshot = home.resolve("store.snapshot");
+        this.log = home.resolve("store.log");
+        this.byName = new ConcurrentHashMap<>();
+        this.byContent = new ConcurrentHashMap<>();
+        this.logRecords = 0;
+    }
+
+    //Reads the snapshot and replays the log. Until this is called the store is empty and nothing is persisted.
+    public synchronized void load() throws IOException
+    {
+        byName.clear();
+        byContent.clear();
+        if(Files.exists(snapshot))
+        {
+            try(FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ))
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(buffer.getInt() != MAGIC)
+                {
+                    //Written in an earlier layout, whose log cannot be read either. The store starts over and the
+                    //catalog is imported again.
+                    System.err.println("Error in " + snapshot + ": not a content store snapshot, starting over");
+                    Files.delete(snapshot);
+                    logOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(log)));
+                    return;
+                }
+                int count = buffer.getInt();
+                for(int i = 0; i < count; i++)
+                {
+                    apply(buffer);
+                }
+            }
+            catch(RuntimeException e)
+            {
+                throw new IOException(snapshot + " is corrupt: " + e);
+            }
+        }
+        long valid = 0;
+        if(Files.exists(log))
+        {
+            try(FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                try
+                {
+                    while(buffer.hasRemaining())
+                    {
+                        apply(buffer);
+                        valid = buffer.position();
+                        logRecords++;
+                    }
+                }
+                catch(RuntimeException e)
+                {
+                    System.err.println("Error in " + log + ", dropping it from the first record that does not decode: " + e);
+                }
+                channel.truncate(valid);
+            }
+        }
+        logOut = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(log, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+    }
+
+    //Decodes one record and applies it.
+    private void apply(ByteBuffer buffer)
+    {
+        byte op = buffer.get();
+        byte[] name = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(name);
+        String file = new String(name, StandardCharsets.UTF_8);
+        if(op == REMOVE)
+        {
+            forget(file);
+            return;
+        }
+        byte[] keywords = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(keywords);
+        long size = buffer.getLong();
+        long lastModified = buffer.getLong();
+        byte[] hashes = new byte[(int) Math.max(1, (size + FileManifest.CHUNK_SIZE - 1) / FileManifest.CHUNK_SIZE)
+                * FileManifest.HASH_SIZE];
+        buffer.get(hashes);
+        remember(new Entry(file, new String(keywords, StandardCharsets.UTF_8), lastModified, new FileManifest(size, hashes)));
+    }
+
+    //Returns the manifest of a shared file, hashing it only if it changed since the store last saw it.
+    public FileManifest manifest(String name) throws IOException
+    {
+        return share(name, null);
+    }
+
+    //Shares a file under the given keywords, or under those it already has if null, and returns its manifest.
+    //The file is hashed only if it changed since the store last saw it.
+    public FileManifest share(String name, String keywords) throws IOException
+    {
+        Path file = home.resolve(name);
+        long lastModified;
+        long size;
+        try
+        {
+            lastModified = Files.getLastModifiedTime(file).toMillis();
+            size = Files.size(file);
+        }
+        catch(NoSuchFileException e)
+        {
+            remove(name);
+            throw e;
+        }
+        Entry entry = byName.get(name);
+        if(keywords == null)
+        {
+            keywords = (entry != null) ? entry.keywords : "";
+        }
+        if(entry != null && entry.lastModified == lastModified && entry.manifest.getSize() == size)
+        {
+            if(!entry.keywords.equals(keywords))
+            {
+                put(name, keywords, lastModified, entry.manifest);
+            }
+            return entry.manifest;
+        }
+        FileManifest manifest = FileManifest.of(file);
+        put(name, keywords, lastModified, manifest);
+        return manifest;
+    }
+
+    //Records a file whose manifest is already known, e.g. a download verified chunk by chunk.
+    public void put(String name, String keywords, FileManifest manifest) throws IOException
+    {
+        put(name, keywords, Files.getLastModifiedTime(home.resolve(name)).toMillis(), manifest);
+    }
+
+    synchronized void put(String name, String keywords, long lastModified, FileManifest manifest)
+    {
+        //The log is read back by working out the hashes' length from the size, so they must agree.
+        if(!FileManifest.isValid(manifest.getSize(), manifest.getHashes()))
+        {
+            throw new IllegalArgumentException("Invalid manifest for " + name);
+        }
+        //Lengths are written as 2 bytes, so a longer name or keyword list would corrupt the record.
+        if(name.getBytes(StandardCharsets.UTF_8).length > MAX_STRING_BYTES
+                || keywords.getBytes(StandardCharsets.UTF_8).length > MAX_STRING_BYTES)
+        {
+            throw new IllegalArgumentException("Name or keywords of " + name + " longer than " + MAX_STRING_BYTES + " bytes");
+        }
+        Entry entry = new Entry(name, keywords, lastModified, manifest);
+        remember(entry);
+        append(PUT, name, entry);
+    }
+
+    public synchronized void remove(String name)
+    {
+        if(byName.containsKey(name))
+        {
+            forget(name);
+            append(REMOVE, name, null);
+        }
+    }
+
+    //Names of the shared files with exactly this content. Empty if there are none.
+    public List<String> getNames(FileManifest manifest)
+    {
+        return byContent.getOrDefault(manifest, Collections.emptyList());
+    }
+
+    public int size()
+    {
+        return byName.size();
+    }
+
+    //Every shared file, e.g. to rebuild the keyword index from.
+    public Collection<Entry> getEntries()
+    {
+        return Collections.unmodifiableCollection(byName.values());
+    }
+
+    //Changes are made under the store's lock. The name lists are replaced rather than changed, so readers need none.
+    private void remember(Entry entry)
+    {
+        forget(entry.name);
+        byName.put(entry.name, entry);
+        byContent.merge(entry.manifest, Collections.singletonList(entry.name), (names, added) ->
+        {
+            List<String> merged = new ArrayList<>(names);
+            merged.addAll(added);
+            return Collections.unmodifiableList(merged);
+        });
+    }
+
+    private void forget(String name)
+    {
+        Entry old = byName.remove(name);
+        if(old != null)
+        {
+            byContent.computeIfPresent(old.manifest, (manifest, names) ->
+            {
+                List<String> remaining = new ArrayList<>(names);
+                remaining.remove(name);
+                return remaining.isEmpty() ? null : Collections.unmodifiableList(remaining);
+            });
+        }
+    }
+
+    //Appends a record to the log, writing a snapshot instead once the log has grown larger than the store.
+    private void append(byte op, String name, Entry entry)
+    {
+        if(logOut == null)
+        {
+            return;
+        }
+        try
+        {
+            if(++logRecords > Math.max(MIN_LOG_RECORDS, byName.size()))
+            {
+                writeSnapshot();
+                return;
+            }
+            write(logOut, op, name, entry);
+            logOut.flush();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error writing " + log + ": " + e.getMessage());
+        }
+    }
+
+    //Writes every entry to a new snapshot, swaps it in atomically and empties the log. The snapshot is forced to disk
+    //before it replaces the old one, or a crash could leave a renamed but empty snapshot next to an emptied log.
+    private void writeSnapshot() throws IOException
+    {
+        Path temporary = home.resolve("store.snapshot.tmp");
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            Collection<Entry> entries = new ArrayList<>(byName.values());
+            out.writeInt(MAGIC);
+            out.writeInt(entries.size());
+            for(Entry entry: entries)
+            {
+                write(out, PUT, entry.name, entry);
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logOut.close();
+        logOut = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(log, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)));
+        logRecords = 0;
+    }
+
+    private static void write(DataOutputStream out, byte op, String name, Entry entry) throws IOException
+    {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(op);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+        if(op == PUT)
+        {
+            bytes = entry.keywords.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+            out.writeLong(entry.manifest.getSize());
+            out.writeLong(entry.lastModified);
+            out.write(entry.manifest.getHashes());
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if(logOut != null)
+        {
+            logOut.close();
+            logOut = null;
+        }
+    }
+}
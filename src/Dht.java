@@ -0,0 +1,433 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+//Kademlia distributed hash table for exact lookups by file name or keyword, alongside the unstructured overlay.
+//Each node's key is the hash of its address. Every catalog line is stored under the key of its file name and
+//of each of its keywords, at the K nodes whose keys are closest to it by XOR distance. A lookup asks the closest
+//contacts it knows, ALPHA at a time, for contacts closer still, so every round at least halves the distance and
+//it reaches those nodes in O(log n) rounds. Contacts are kept in k-buckets, one per distance range, which fill
+//up from every DHT request received as well as from the node's neighbors.
+public class Dht
+{
+    //Class constants.
+    public final static int K = 8;
+    public final static int ALPHA = 3;
+    private final static int MAX_VALUES_PER_KEY = 20;
+
+    //Sends a request to the DHT node at the address and returns its response, which always ends with DHT_NODES.
+    public interface Transport
+    {
+        List<Message> call(String address, Message request) throws IOException;
+    }
+
+    //A file stored under a name: the catalog line, the node holding it and its manifest.
+    public static final class Record
+    {
+        private final String name;
+        private final String fileKeyword;
+        private final String location;
+        private final FileManifest manifest;
+        private final long expiresAt;
+
+        Record(String name, String fileKeyword, String location, FileManifest manifest, long expiresAt)
+        {
+            this.name = name;
+            this.fileKeyword = fileKeyword;
+            this.location = location;
+            this.manifest = manifest;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getFileKeyword()
+        {
+            return fileKeyword;
+        }
+
+        public String getLocation()
+        {
+            return location;
+        }
+
+        public FileManifest getManifest()
+        {
+            return manifest;
+        }
+    }
+
+    //Instance variables and constants.
+    private final String self;
+    private final DhtKey selfKey;
+    private final Transport transport;
+    private final Executor executor;
+    private final long recordTtlMs;
+    private final List<Deque<Contact>> buckets;
+    private final Map<DhtKey, Map<String, Record>> store;
+
+    public Dht(String self, Transport transport, Executor executor, long recordTtlMs)
+    {
+        this.self = self;
+        this.selfKey = DhtKey.of(self);
+        this.transport = transport;
+        this.executor = executor;
+        this.recordTtlMs = recordTtlMs;
+        this.buckets = new ArrayList<>();
+        for(int i = 0; i < DhtKey.BITS; i++)
+        {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.store = new ConcurrentHashMap<>();
+    }
+
+    //Adds or refreshes a contact. Like Kademlia, a full bucket keeps its oldest contacts, since nodes that have
+    //been up longest are the most likely to stay up. Contacts that stop answering are removed, which makes room.
+    public void addContact(String address)
+    {
+        if(address.equals(self) || !NodeConfig.isValidAddress(address))
+        {
+            return;
+        }
+        Contact contact = new Contact(address);
+        boolean added;
+        synchronized(buckets)
+        {
+            Deque<Contact> bucket = buckets.get(selfKey.bucketIndex(contact.key));
+            boolean known = bucket.removeIf(c -> c.address.equals(address));
+            added = !known && bucket.size() < K;
+            if(known || added)
+            {
+                bucket.addLast(contact);
+            }
+        }
+        if(added && !store.isEmpty())
+        {
+            executor.execute(() -> handOff(contact));
+        }
+    }
+
+    //Copies stored records to a newly found contact that is now among the K closest to their key, as Kademlia
+    //does, so records published while the DHT was smaller stay where lookups will look. Only the node closest to
+    //the key sends them, which keeps a join from triggering K copies of every record.
+    private void handOff(Contact contact)
+    {
+        for(Map.Entry<DhtKey, Map<String, Record>> entry: store.entrySet())
+        {
+            DhtKey key = entry.getKey();
+            List<Contact> closest = closest(key);
+            Comparator<DhtKey> byDistance = key.byDistance();
+            if(!closest.contains(contact) || byDistance.compare(contact.key, selfKey) > 0)
+            {
+                continue;
+            }
+            boolean selfClosest = true;
+            for(Contact other: closest)
+            {
+                if(other != contact && byDistance.compare(other.key, selfKey) < 0)
+                {
+                    selfClosest = false;
+                    break;
+                }
+            }
+            if(!selfClosest)
+            {
+                continue;
+            }
+            for(Record record: get(key))
+            {
+                call(contact.address, Message.dhtStore(record.name, record.fileKeyword, record.location, record.manifest, self));
+            }
+        }
+    }
+
+    public void removeContact(String address)
+    {
+        if(address.equals(self))
+        {
+            return;
+        }
+        synchronized(buckets)
+        {
+            buckets.get(selfKey.bucketIndex(DhtKey.of(address))).removeIf(c -> c.address.equals(address));
+        }
+    }
+
+    //Fills the routing table by looking up this node's own key, which also makes it known to the nodes near it.
+    public void bootstrap()
+    {
+        lookup(self, false);
+    }
+
+    //Stores the file under the name at the K nodes closest to the name's key, this node included if it is one.
+    //Returns the number of nodes that stored it.
+    public int publish(String name, String fileKeyword, String location, FileManifest manifest)
+    {
+        DhtKey key = DhtKey.of(name);
+        List<Contact> closest = lookup(name, false).closest;
+        int stored = 0;
+        if(closest.size() < K || key.byDistance().compare(selfKey, closest.get(closest.size() - 1).key) < 0)
+        {
+            put(key, new Record(name, fileKeyword, location, manifest, System.currentTimeMillis() + recordTtlMs));
+            stored++;
+        }
+        CompletionService<List<Message>> calls = new ExecutorCompletionService<>(executor);
+        Message request = Message.dhtStore(name, fileKeyword, location, manifest, self);
+        for(Contact contact: closest)
+        {
+            calls.submit(() -> call(contact.address, request));
+        }
+        for(int i = 0; i < closest.size(); i++)
+        {
+            List<Message> response = take(calls);
+            if(response != null)
+            {
+                stored++;
+            }
+        }
+        return stored;
+    }
+
+    //Files stored under the name, from this node or the closest nodes holding any. Empty if none were found.
+    public List<Record> findValue(String name)
+    {
+        return lookup(name, true).values;
+    }
+
+    //Answers a DHT request from another node.
+    public List<Message> handle(Message request)
+    {
+        addContact(request.getSender());
+        DhtKey key = DhtKey.of(request.getName());
+        List<Message> response = new ArrayList<>();
+        if(request.getType() == Message.DHT_STORE)
+        {
+            put(key, new Record(request.getName(), request.getFileKeyword(), request.getLocation(), request.getManifest(),
+                    System.currentTimeMillis() + recordTtlMs));
+            response.add(Message.dhtNodes(Collections.emptyList()));
+            return response;
+        }
+        if(request.getType() == Message.DHT_FIND_VALUE)
+        {
+            for(Record record: get(key))
+            {
+                response.add(Message.dhtValue(record.fileKeyword, record.location, record.manifest));
+            }
+        }
+        List<String> contacts = new ArrayList<>();
+        for(Contact contact: closest(key))
+        {
+            if(!contact.address.equals(request.getSender()))
+            {
+                contacts.add(contact.address);
+            }
+        }
+        response.add(Message.dhtNodes(contacts));
+        return response;
+    }
+
+    //Drops stored records whose publisher has not renewed them in time.
+    public void expire()
+    {
+        long now = System.currentTimeMillis();
+        for(Map<String, Record> records: store.values())
+        {
+            records.values().removeIf(r -> r.expiresAt <= now);
+        }
+        store.values().removeIf(Map::isEmpty);
+    }
+
+    private void put(DhtKey key, Record record)
+    {
+        Map<String, Record> records = store.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+        String id = record.location + " " + record.fileKeyword;
+        if(records.containsKey(id) || records.size() < MAX_VALUES_PER_KEY)
+        {
+            records.put(id, record);
+        }
+    }
+
+    private List<Record> get(DhtKey key)
+    {
+        Map<String, Record> records = store.get(key);
+        if(records == null)
+        {
+            return Collections.emptyList();
+        }
+        long now = System.currentTimeMillis();
+        List<Record> live = new ArrayList<>();
+        for(Record record: records.values())
+        {
+            if(record.expiresAt > now)
+            {
+                live.add(record);
+            }
+        }
+        return live;
+    }
+
+    //The K contacts closest to the key that this node knows of.
+    private List<Contact> closest(DhtKey key)
+    {
+        List<Contact> all = new ArrayList<>();
+        synchronized(buckets)
+        {
+            for(Deque<Contact> bucket: buckets)
+            {
+                all.addAll(bucket);
+            }
+        }
+        all.sort(Comparator.comparing((Contact c) -> c.key, key.byDistance()));
+        return all.subList(0, Math.min(K, all.size()));
+    }
+
+    //Iterative lookup of the name's key. Keeps ALPHA requests in flight to the closest contacts not asked yet,
+    //merging the contacts each answer brings into the shortlist, until the K closest contacts have all answered
+    //or failed. A value lookup stops as soon as an answer carries files.
+    private Lookup lookup(String name, boolean findValue)
+    {
+        DhtKey key = DhtKey.of(name);
+        Lookup result = new Lookup();
+        if(findValue)
+        {
+            result.values.addAll(get(key));
+            if(!result.values.isEmpty())
+            {
+                return result;
+            }
+        }
+        Comparator<Contact> byDistance = Comparator.comparing((Contact c) -> c.key, key.byDistance());
+        TreeSet<Contact> shortlist = new TreeSet<>(byDistance);
+        TreeSet<Contact> answered = new TreeSet<>(byDistance);
+        shortlist.addAll(closest(key));
+        Set<String> asked = new HashSet<>();
+        CompletionService<Response> calls = new ExecutorCompletionService<>(executor);
+        Message request = findValue ? Message.dhtFindValue(name, self) : Message.dhtFindNode(name, self);
+        int inFlight = 0;
+        while(true)
+        {
+            int considered = 0;
+            for(Contact contact: shortlist)
+            {
+                if(considered++ == K || inFlight == ALPHA)
+                {
+                    break;
+                }
+                if(asked.add(contact.address))
+                {
+                    calls.submit(() -> new Response(contact, call(contact.address, request)));
+                    inFlight++;
+                }
+            }
+            if(inFlight == 0)
+            {
+                break;
+            }
+            Response response = take(calls);
+            inFlight--;
+            if(response == null)
+            {
+                break;
+            }
+            if(response.messages == null)
+            {
+                shortlist.remove(response.contact);
+                continue;
+            }
+            answered.add(response.contact);
+            for(Message message: response.messages)
+            {
+                if(message.getType() == Message.DHT_VALUE)
+                {
+                    result.values.add(new Record(name, message.getFileKeyword(), message.getLocation(), message.getManifest(), 0));
+                }
+                else if(message.getType() == Message.DHT_NODES)
+                {
+                    for(String address: message.getContacts())
+                    {
+                        if(!address.equals(self) && NodeConfig.isValidAddress(address))
+                        {
+                            shortlist.add(new Contact(address));
+                        }
+                    }
+                }
+            }
+            if(findValue && !result.values.isEmpty())
+            {
+                break;
+            }
+        }
+        for(Contact contact: answered)
+        {
+            if(result.closest.size() == K)
+            {
+                break;
+            }
+            result.closest.add(contact);
+        }
+        return result;
+    }
+
+    //Sends one request, keeping the routing table current: contacts that answer are refreshed and contacts that
+    //do not are dropped. Returns null if the contact did not answer or could not be reached at all.
+    private List<Message> call(String address, Message request)
+    {
+        try
+        {
+            List<Message> response = transport.call(address, request);
+            addContact(address);
+            return response;
+        }
+        catch(IOException | RuntimeException e)
+        {
+            removeContact(address);
+            return null;
+        }
+    }
+
+    //Next finished request, or null if the thread was interrupted.
+    private static <T> T take(CompletionService<T> calls)
+    {
+        try
+        {
+            return calls.take().get();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static class Contact
+    {
+        private final String address;
+        private final DhtKey key;
+
+        Contact(String address)
+        {
+            this.address = address;
+            this.key = DhtKey.of(address);
+        }
+    }
+
+    private static class Response
+    {
+        private final Contact contact;
+        private final List<Message> messages;
+
+        Response(Contact contact, List<Message> messages)
+        {
+            this.contact = contact;
+            this.messages = messages;
+        }
+    }
+
+    private static class Lookup
+    {
+        private final List<Record> values = new ArrayList<>();
+        private final List<Contact> closest = new ArrayList<>();
+    }
+}
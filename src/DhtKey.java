@@ -0,0 +1,89 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+//160-bit identifier in the DHT: the SHA-1 hash of a node's "<address>:<port>", or of a file name or keyword.
+//Names are lower-cased first, as the keyword index ignores case. Closeness is the XOR of two keys read as a number.
+public final class DhtKey
+{
+    //Class constants.
+    public final static int BITS = 160;
+
+    //Instance variables and constants.
+    private final byte[] bytes;
+
+    private DhtKey(byte[] bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    public static DhtKey of(String name)
+    {
+        try
+        {
+            return new DhtKey(MessageDigest.getInstance("SHA-1").digest(name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8)));
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    //Index of the highest bit in which the keys differ, i.e. the k-bucket the other key belongs in. -1 if equal.
+    public int bucketIndex(DhtKey other)
+    {
+        for(int i = 0; i < bytes.length; i++)
+        {
+            int x = (bytes[i] ^ other.bytes[i]) & 0xFF;
+            if(x != 0)
+            {
+                return (bytes.length - 1 - i) * 8 + 31 - Integer.numberOfLeadingZeros(x);
+            }
+        }
+        return -1;
+    }
+
+    //Orders keys by their distance to this key, closest first.
+    public Comparator<DhtKey> byDistance()
+    {
+        return (a, b) ->
+        {
+            for(int i = 0; i < bytes.length; i++)
+            {
+                int x = (a.bytes[i] ^ bytes[i]) & 0xFF;
+                int y = (b.bytes[i] ^ bytes[i]) & 0xFF;
+                if(x != y)
+                {
+                    return Integer.compare(x, y);
+                }
+            }
+            return 0;
+        };
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+        return other instanceof DhtKey && Arrays.equals(bytes, ((DhtKey) other).bytes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder hex = new StringBuilder();
+        for(byte b: bytes)
+        {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+
+//Sidecar record of which chunks of a partial download have been written and verified.
+//Layout: magic (4 bytes) | file size (8 bytes) | hash length (4 bytes) | chunk hashes | one bit per chunk.
+//The bit for a chunk is set in place after the chunk itself has been written, but neither write is forced to disk,
+//so after a crash the bit may have reached the disk while the chunk did not. Marked chunks are therefore hashed again
+//with verify() before a download resumes, and any that do not match are fetched again.
+public class DownloadProgress implements Closeable
+{
+    //Class constants.
+    private final static int MAGIC = 0x50325050;
+
+    //Instance variables and constants.
+    private final FileChannel channel;
+    private final long bitmapOffset;
+    private final BitSet completed;
+    private final int chunkCount;
+
+    private DownloadProgress(FileChannel channel, long bitmapOffset, BitSet completed, int chunkCount)
+    {
+        this.channel = channel;
+        this.bitmapOffset = bitmapOffset;
+        this.completed = completed;
+        this.chunkCount = chunkCount;
+    }
+
+    //Opens the progress record for a download. An existing record is kept only if it describes the same
+    //content; otherwise the record starts over empty.
+    public static DownloadProgress open(Path sidecar, FileManifest manifest) throws IOException
+    {
+        byte[] hashes = manifest.getHashes();
+        long bitmapOffset = Integer.BYTES + Long.BYTES + Integer.BYTES + hashes.length;
+        int chunkCount = manifest.getChunkCount();
+        int bitmapSize = (chunkCount + 7) / 8;
+        FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try
+        {
+            if(channel.size() == bitmapOffset + bitmapSize)
+            {
+                ByteBuffer existing = ByteBuffer.allocate((int) channel.size());
+                while(existing.hasRemaining())
+                {
+                    if(channel.read(existing, existing.position()) <= 0)
+                    {
+                        break;
+                    }
+                }
+                existing.flip();
+                if(existing.getInt() == MAGIC && existing.getLong() == manifest.getSize()
+                        && existing.getInt() == hashes.length)
+                {
+                    byte[] recorded = new byte[hashes.length];
+                    existing.get(recorded);
+                    if(Arrays.equals(recorded, hashes))
+                    {
+                        byte[] bitmap = new byte[bitmapSize];
+                        existing.get(bitmap);
+                        return new DownloadProgress(channel, bitmapOffset, BitSet.valueOf(bitmap), chunkCount);
+                    }
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate((int) bitmapOffset + bitmapSize);
+            header.putInt(MAGIC).putLong(manifest.getSize()).putInt(hashes.length).put(hashes);
+            header.position(header.limit());
+            header.flip();
+            channel.truncate(0);
+            while(header.hasRemaining())
+            {
+                channel.write(header, header.position());
+            }
+            return new DownloadProgress(channel, bitmapOffset, new BitSet(chunkCount), chunkCount);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    //Returns the chunks recorded as complete.
+    public synchronized BitSet getCompleted()
+    {
+        return (BitSet) completed.clone();
+    }
+
+    public synchronized int getCompletedCount()
+    {
+        return completed.cardinality();
+    }
+
+    public int getChunkCount()
+    {
+        return chunkCount;
+    }
+
+    //Records a chunk as written and verified by rewriting the bitmap byte that holds it.
+    public synchronized void markCompleted(int chunk) throws IOException
+    {
+        completed.set(chunk);
+        writeBitmap(chunk / 8);
+    }
+
+    //Hashes every chunk recorded as complete in the partial file against the manifest, and clears those that do not
+    //match or are missing. Returns the number of chunks cleared.
+    public synchronized int verify(Path partial, FileManifest manifest) throws IOException
+    {
+        if(completed.isEmpty())
+        {
+            return 0;
+        }
+        if(!Files.exists(partial))
+        {
+            int cleared = completed.cardinality();
+            completed.clear();
+            for(int index = 0; index < (chunkCount + 7) / 8; index++)
+            {
+                writeBitmap(index);
+            }
+            return cleared;
+        }
+        int cleared = 0;
+        MessageDigest digest = FileManifest.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(FileManifest.CHUNK_SIZE);
+        try(FileChannel in = FileChannel.open(partial, StandardOpenOption.READ))
+        {
+            for(int chunk = completed.nextSetBit(0); chunk >= 0; chunk = completed.nextSetBit(chunk + 1))
+            {
+                long offset = manifest.getChunkOffset(chunk);
+                buffer.clear().limit(manifest.getChunkLength(chunk));
+                while(buffer.hasRemaining())
+                {
+                    if(in.read(buffer, offset + buffer.position()) <= 0)
+                    {
+                        break;
+                    }
+                }
+                buffer.flip();
+                digest.update(buffer);
+                if(buffer.limit() != manifest.getChunkLength(chunk) || !manifest.verify(chunk, digest.digest()))
+                {
+                    completed.clear(chunk);
+                    writeBitmap(chunk / 8);
+                    cleared++;
+                }
+            }
+        }
+        return cleared;
+    }
+
+    //Writes the bitmap byte with the given index.
+    private void writeBitmap(int index) throws IOException
+    {
+        int value = 0;
+        for(int bit = 0; bit < 8; bit++)
+        {
+            if(completed.get(index * 8 + bit))
+            {
+                value |= 1 << bit;
+            }
+        }
+        channel.write(ByteBuffer.wrap(new byte[] {(byte) value}), bitmapOffset + index);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,118 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Concurrent, bounded set of recently seen keys with generation-bucket expiry.
+//Entries go into the newest of a fixed number of generations, and a single periodic rotate() drops the
+//oldest generation wholesale, so expiry costs one task per period instead of one per entry. Every key
+//lives for at least the requested time-to-live and at most one rotation period longer, unless the entry
+//limit is reached first. Then a small batch of the oldest entries is evicted, rather than rotating early, so a
+//flood of new keys cannot shrink the window for all the others. Each generation remembers its insertion order
+//for this.
+//Inserts check and add under the same lock as rotation and eviction, so a key is never accepted twice;
+//lookups take no lock.
+public class DuplicateCache<K, V>
+{
+    //Class constants.
+    private final static int GENERATIONS = 4;
+    private final static int EVICTION_BATCHES = 64;
+
+    //Instance variables and constants.
+    private final int maxEntries;
+    private final long rotationPeriodMillis;
+    private final AtomicInteger size;
+    private volatile Map<K, V>[] generations;
+    private ArrayDeque<K>[] insertionOrder;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DuplicateCache(long timeToLiveMillis, int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+        this.rotationPeriodMillis = (timeToLiveMillis + GENERATIONS - 2) / (GENERATIONS - 1);
+        this.size = new AtomicInteger();
+        this.generations = new Map[GENERATIONS];
+        this.insertionOrder = new ArrayDeque[GENERATIONS];
+        for(int i = 0; i < GENERATIONS; i++)
+        {
+            generations[i] = new ConcurrentHashMap<>();
+            insertionOrder[i] = new ArrayDeque<>();
+        }
+    }
+
+    //How often rotate() must be called for entries to expire after the time-to-live.
+    public long getRotationPeriodMillis()
+    {
+        return rotationPeriodMillis;
+    }
+
+    //Records the key with its value unless it is already present. Returns true if the key was new.
+    public synchronized boolean putIfAbsent(K key, V value)
+    {
+        if(containsKey(key))
+        {
+            return false;
+        }
+        generations[0].put(key, value);
+        insertionOrder[0].add(key);
+        if(size.incrementAndGet() > maxEntries)
+        {
+            evictOldest();
+        }
+        return true;
+    }
+
+    public boolean containsKey(K key)
+    {
+        return get(key) != null;
+    }
+
+    public V get(K key)
+    {
+        for(Map<K, V> generation: generations)
+        {
+            V value = generation.get(key);
+            if(value != null)
+            {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    //Evicts the oldest entries, about 1/EVICTION_BATCHES of the limit at a time so the next inserts need not.
+    private void evictOldest()
+    {
+        int evict = Math.max(1, maxEntries / EVICTION_BATCHES);
+        for(int i = GENERATIONS - 1; i >= 0 && evict > 0; i--)
+        {
+            while(evict > 0 && !insertionOrder[i].isEmpty())
+            {
+                generations[i].remove(insertionOrder[i].poll());
+                size.decrementAndGet();
+                evict--;
+            }
+        }
+    }
+
+    //Starts a new generation and drops the oldest one.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public synchronized void rotate()
+    {
+        Map<K, V>[] current = generations;
+        Map<K, V>[] next = new Map[GENERATIONS];
+        next[0] = new ConcurrentHashMap<>();
+        System.arraycopy(current, 0, next, 1, GENERATIONS - 1);
+        generations = next;
+        ArrayDeque<K>[] order = new ArrayDeque[GENERATIONS];
+        order[0] = new ArrayDeque<>();
+        System.arraycopy(insertionOrder, 0, order, 1, GENERATIONS - 1);
+        insertionOrder = order;
+        size.addAndGet(-current[GENERATIONS - 1].size());
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Phi-accrual failure detector over the heartbeats received from each neighbor (Hayashibara et al.).
+//Rather than a fixed timeout it learns the distribution of heartbeat intervals per neighbor and reports phi,
+//the suspicion that the neighbor has failed: phi = -log10(P(a heartbeat arrives later than now)). A phi of 8
+//means a live neighbor would be wrongly suspected about once in 10^8 checks, and a neighbor whose heartbeats
+//are usually late on a slow link gets more slack than one whose heartbeats are punctual.
+public class FailureDetector
+{
+    //Class constants.
+    private final static int MAX_SAMPLES = 100;
+
+    //Instance variables and constants.
+    private final long expectedIntervalMs;
+    private final long minStdDeviationMs;
+    private final long acceptablePauseMs;
+    private final Map<String, History> histories;
+
+    public FailureDetector(long expectedIntervalMs, long minStdDeviationMs, long acceptablePauseMs)
+    {
+        this.expectedIntervalMs = expectedIntervalMs;
+        this.minStdDeviationMs = minStdDeviationMs;
+        this.acceptablePauseMs = acceptablePauseMs;
+        this.histories = new ConcurrentHashMap<>();
+    }
+
+    //Starts watching a neighbor as if a heartbeat had just arrived. Already watched neighbors are left alone.
+    public void watch(String peer, long nowMs)
+    {
+        histories.computeIfAbsent(peer, p -> new History(nowMs));
+    }
+
+    public void unwatch(String peer)
+    {
+        histories.remove(peer);
+    }
+
+    //Records a heartbeat from a watched neighbor. Heartbeats from anyone else are ignored.
+    public void heartbeat(String peer, long nowMs)
+    {
+        History history = histories.get(peer);
+        if(history != null)
+        {
+            history.add(nowMs);
+        }
+    }
+
+    //Suspicion that the neighbor has failed. 0 for neighbors that are not watched.
+    public double phi(String peer, long nowMs)
+    {
+        History history = histories.get(peer);
+        return (history == null) ? 0 : history.phi(nowMs);
+    }
+
+    //Heartbeat arrival times of one neighbor, kept as a sliding window of intervals with running sums.
+    private class History
+    {
+        private final ArrayDeque<Long> intervals;
+        private long last;
+        private double sum;
+        private double squares;
+
+        History(long nowMs)
+        {
+            this.intervals = new ArrayDeque<>();
+            this.last = nowMs;
+            //Seed the window with the expected interval, with some spread, so the first heartbeats are not suspect.
+            record(expectedIntervalMs - expectedIntervalMs / 4);
+            record(expectedIntervalMs + expectedIntervalMs / 4);
+        }
+
+        synchronized void add(long nowMs)
+        {
+            record(nowMs - last);
+            last = nowMs;
+        }
+
+        private void record(long interval)
+        {
+            intervals.addLast(interval);
+            sum += interval;
+            squares += (double) interval * interval;
+            if(intervals.size() > MAX_SAMPLES)
+            {
+                long dropped = intervals.removeFirst();
+                sum -= dropped;
+                squares -= (double) dropped * dropped;
+            }
+        }
+
+        synchronized double phi(long nowMs)
+        {
+            int n = intervals.size();
+            double mean = sum / n + acceptablePauseMs;
+            double deviation = Math.max(minStdDeviationMs, Math.sqrt(Math.max(0, squares / n - (sum / n) * (sum / n))));
+            //Logistic approximation of the normal distribution's tail, as in Akka's detector.
+            double y = (nowMs - last - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            double later = (y > 0) ? e / (1 + e) : 1 - 1 / (1 + e);
+            return -Math.log10(Math.max(later, Double.MIN_VALUE));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+//Size and per-chunk SHA-256 hashes of a shared file. Advertised in replies so a download can be split
+//into chunks, fetched from several peers and verified chunk by chunk.
+public final class FileManifest
+{
+    //Class constants.
+    public final static int CHUNK_SIZE = 1 << 20;
+    public final static int HASH_SIZE = 32;
+
+    //Instance variables and constants.
+    private final long size;
+    private final byte[] hashes;
+
+    public FileManifest(long size, byte[] hashes)
+    {
+        if(!isValid(size, hashes))
+        {
+            throw new IllegalArgumentException(hashes.length + " bytes of hashes for a file of " + size + " bytes");
+        }
+        this.size = size;
+        this.hashes = hashes;
+    }
+
+    //Hashes a local file. ContentStore keeps the results, so files are only hashed again once they change.
+    public static FileManifest of(Path file) throws IOException
+    {
+        long size = Files.size(file);
+        return new FileManifest(size, hash(file, size));
+    }
+
+    private static byte[] hash(Path file, long size) throws IOException
+    {
+        int chunks = chunkCount(size);
+        byte[] hashes = new byte[chunks * HASH_SIZE];
+        byte[] buffer = new byte[64 * 1024];
+        MessageDigest digest = newDigest();
+        try(InputStream in = Files.newInputStream(file))
+        {
+            for(int chunk = 0; chunk < chunks; chunk++)
+            {
+                long remaining = Math.min(CHUNK_SIZE, size - (long) chunk * CHUNK_SIZE);
+                while(remaining > 0)
+                {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if(n == -1)
+                    {
+                        throw new IOException("File shrank while it was being hashed");
+                    }
+                    digest.update(buffer, 0, n);
+                    remaining -= n;
+                }
+                System.arraycopy(digest.digest(), 0, hashes, chunk * HASH_SIZE, HASH_SIZE);
+            }
+        }
+        return hashes;
+    }
+
+    public static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //True if the hashes hold exactly one hash per chunk of a file of the given size. Manifests from other nodes
+    //are checked with this before use.
+    public static boolean isValid(long size, byte[] hashes)
+    {
+        if(size < 0)
+        {
+            return false;
+        }
+        long chunks = Math.max(1, size / CHUNK_SIZE + ((size % CHUNK_SIZE == 0) ? 0 : 1));
+        return hashes.length == chunks * HASH_SIZE;
+    }
+
+    private static int chunkCount(long size)
+    {
+        return (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public byte[] getHashes()
+    {
+        return hashes;
+    }
+
+    public int getChunkCount()
+    {
+        return chunkCount(size);
+    }
+
+    public long getChunkOffset(int chunk)
+    {
+        return (long) chunk * CHUNK_SIZE;
+    }
+
+    public int getChunkLength(int chunk)
+    {
+        return (int) Math.min(CHUNK_SIZE, size - getChunkOffset(chunk));
+    }
+
+    //Checks a chunk's digest against the advertised hash.
+    public boolean verify(int chunk, byte[] digest)
+    {
+        return Arrays.equals(hashes, chunk * HASH_SIZE, (chunk + 1) * HASH_SIZE, digest, 0, HASH_SIZE);
+    }
+
+    //Two manifests describe the same content if their sizes and chunk hashes match.
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof FileManifest))
+        {
+            return false;
+        }
+        FileManifest other = (FileManifest) o;
+        return size == other.size && Arrays.equals(hashes, other.hashes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(size) * 31 + Arrays.hashCode(hashes);
+    }
+}
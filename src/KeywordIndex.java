@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+//In-memory inverted index from keyword to the catalog lines, "<file> <keyword>...", that contain it.
+//Built at startup from the content store, which keeps each shared file's keywords. availableFiles.txt is only read
+//in full to import it into a store that is still empty; after that only what is appended to it is indexed.
+public class KeywordIndex
+{
+    //Instance variables and constants.
+    private final Path catalog;
+    private final ContentStore store;
+    private final Map<String, Set<String>> keywords;
+    private final Map<String, Set<String>> files;
+    private long indexedLength;
+
+    public KeywordIndex(Path catalog, ContentStore store)
+    {
+        this.catalog = catalog;
+        this.store = store;
+        this.keywords = new ConcurrentHashMap<>();
+        this.files = new ConcurrentHashMap<>();
+        this.indexedLength = 0;
+    }
+
+    //Rebuilds the index from the content store, or from the whole catalog if the store is empty. Files imported
+    //from the catalog are put in the store once they are hashed.
+    public synchronized void load() throws IOException
+    {
+        keywords.clear();
+        files.clear();
+        indexedLength = 0;
+        if(store.size() == 0)
+        {
+            refresh();
+            return;
+        }
+        for(ContentStore.Entry entry: store.getEntries())
+        {
+            add(entry.getName() + " " + entry.getKeywords());
+        }
+        indexedLength = Files.exists(catalog) ? Files.size(catalog) : 0;
+    }
+
+    //Indexes the lines appended to the catalog since the last call, and returns the files they name.
+    //Starts over from the beginning if the catalog was truncated.
+    public synchronized Set<String> refresh() throws IOException
+    {
+        Set<String> added = new LinkedHashSet<>();
+        if(!Files.exists(catalog))
+        {
+            indexedLength = 0;
+            return added;
+        }
+        try(RandomAccessFile in = new RandomAccessFile(catalog.toFile(), "r"))
+        {
+            long length = in.length();
+            if(length < indexedLength)
+            {
+                indexedLength = 0;
+            }
+            byte[] appended = new byte[(int) (length - indexedLength)];
+            in.seek(indexedLength);
+            in.readFully(appended);
+
+            //Only whole lines are indexed; a partially written last line is picked up next time.
+            int start = 0;
+            for(int i = 0; i < appended.length; i++)
+            {
+                if(appended[i] == '\n')
+                {
+                    String file = add(new String(appended, start, i - start, StandardCharsets.UTF_8));
+                    if(file != null)
+                    {
+                        added.add(file);
+                    }
+                    start = i + 1;
+                }
+            }
+            indexedLength += start;
+        }
+        return added;
+    }
+
+    //Adds a single catalog line of the form "<file> <keyword>..." and returns the file, or null for a blank line.
+    public String add(String line)
+    {
+        line = line.trim();
+        if(line.isEmpty())
+        {
+            return null;
+        }
+        String[] elements = line.split("\\s+");
+        files.computeIfAbsent(elements[0], f -> ConcurrentHashMap.newKeySet()).add(line);
+        for(String s: elements)
+        {
+            keywords.computeIfAbsent(s.toLowerCase(Locale.ROOT), k -> ConcurrentHashMap.newKeySet()).add(line);
+        }
+        return elements[0];
+    }
+
+    //Drops every line that advertises the given file, e.g. after it was deleted from the home directory.
+    public void remove(String file)
+    {
+        Set<String> lines = files.remove(file);
+        if(lines == null)
+        {
+            return;
+        }
+        for(String line: lines)
+        {
+            for(String s: line.split("\\s+"))
+            {
+                Set<String> matches = keywords.get(s.toLowerCase(Locale.ROOT));
+                if(matches != null)
+                {
+                    matches.remove(line);
+                }
+            }
+        }
+    }
+
+    //Returns every line of the catalog.
+    public List<String> getLines()
+    {
+        List<String> lines = new ArrayList<>();
+        for(Set<String> fileLines: files.values())
+        {
+            lines.addAll(fileLines);
+        }
+        return lines;
+    }
+
+    //Returns every file in the catalog.
+    public Set<String> getFiles()
+    {
+        return files.keySet();
+    }
+
+    //Returns the keywords of every line for the file, without the file name, separated by spaces.
+    public String getKeywords(String file)
+    {
+        Set<String> found = new LinkedHashSet<>();
+        for(String line: files.getOrDefault(file, Collections.emptySet()))
+        {
+            String[] elements = line.split("\\s+");
+            found.addAll(Arrays.asList(elements).subList(1, elements.length));
+        }
+        return String.join(" ", found);
+    }
+
+    //Returns every distinct keyword in the catalog, lower-cased.
+    public Set<String> getKeywords()
+    {
+        return keywords.keySet();
+    }
+
+    //Returns every catalog line containing the keyword, ignoring case.
+    public List<String> search(String keyword)
+    {
+        Set<String> matches = keywords.get(keyword.toLowerCase(Locale.ROOT));
+        if(matches == null)
+        {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(matches);
+    }
+
+    //Watches the home directory on a daemon thread. Lines appended to the catalog are indexed and their files put in
+    //the content store under their keywords, and deleted files are dropped from both. If events were lost, the
+    //index and store are checked against the files on disk.
+    public void watch()
+    {
+        Thread watcher = new Thread(() ->
+        {
+            try(WatchService service = FileSystems.getDefault().newWatchService())
+            {
+                Path directory = catalog.toAbsolutePath().getParent();
+                directory.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                while(true)
+                {
+                    WatchKey key = service.take();
+                    for(WatchEvent<?> event: key.pollEvents())
+                    {
+                        if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        {
+                            resync();
+                            continue;
+                        }
+                        Path changed = (Path) event.context();
+                        if(changed.equals(catalog.getFileName()))
+                        {
+                            share(refresh());
+                        }
+                        else if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE)
+                        {
+                            remove(changed.toString());
+                            store.remove(changed.toString());
+                        }
+                    }
+                    if(!key.reset())
+                    {
+                        return;
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                System.err.println("Error watching home directory: " + e.getMessage());
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        });
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    //Catches up after the watcher lost events: drops every file no longer on disk from the index and the content
+    //store, and indexes whatever was appended to the catalog meanwhile. Reloading the catalog instead would bring
+    //back the lines of files deleted since it was written.
+    private void resync() throws IOException
+    {
+        Path directory = catalog.toAbsolutePath().getParent();
+        Set<String> shared = new HashSet<>(files.keySet());
+        for(ContentStore.Entry entry: store.getEntries())
+        {
+            shared.add(entry.getName());
+        }
+        for(String file: shared)
+        {
+            if(!Files.exists(directory.resolve(file)))
+            {
+                remove(file);
+                store.remove(file);
+            }
+        }
+        share(refresh());
+    }
+
+    //Puts the files in the content store under the keywords indexed for them, hashing them if need be.
+    public void share(Collection<String> shared)
+    {
+        for(String file: shared)
+        {
+            try
+            {
+                store.share(file, getKeywords(file));
+            }
+            catch(IOException | IllegalArgumentException e)
+            {
+                System.err.println("Error sharing file " + file + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.LongAdder;
+
+//Concurrent latency histogram with power-of-two buckets from 1 microsecond to about 8 seconds.
+//Recording is a bucket lookup plus three LongAdder increments, so it is cheap enough for the message path.
+public class LatencyHistogram
+{
+    //Class constants.
+    public final static int BUCKETS = 24;
+    private final static long BASE_NANOS = 1000;
+
+    //Instance variables and constants.
+    private final LongAdder[] counts;
+    private final LongAdder sum;
+    private final LongAdder count;
+
+    public LatencyHistogram()
+    {
+        this.counts = new LongAdder[BUCKETS + 1];
+        for(int i = 0; i < counts.length; i++)
+        {
+            counts[i] = new LongAdder();
+        }
+        this.sum = new LongAdder();
+        this.count = new LongAdder();
+    }
+
+    public void record(long nanos)
+    {
+        int bucket = (nanos <= BASE_NANOS) ? 0 : 64 - Long.numberOfLeadingZeros((nanos - 1) / BASE_NANOS);
+        counts[Math.min(bucket, BUCKETS)].increment();
+        sum.add(nanos);
+        count.increment();
+    }
+
+    //Upper bound of the bucket in nanoseconds. The last bucket has no bound.
+    public static long getBucketBound(int bucket)
+    {
+        return (bucket < BUCKETS) ? BASE_NANOS << bucket : Long.MAX_VALUE;
+    }
+
+    //Number of recordings in the bucket alone, not including the buckets below it.
+    public long getBucketCount(int bucket)
+    {
+        return counts[bucket].sum();
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public long getSumNanos()
+    {
+        return sum.sum();
+    }
+
+    public double getMeanNanos()
+    {
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    //Upper bound of the bucket holding the given quantile, e.g. 0.99 for the 99th percentile.
+    public long getQuantileNanos(double quantile)
+    {
+        long total = 0;
+        long[] snapshot = new long[counts.length];
+        for(int i = 0; i < counts.length; i++)
+        {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for(int i = 0; i < snapshot.length; i++)
+        {
+            seen += snapshot[i];
+            if(seen >= rank && seen > 0)
+            {
+                return getBucketBound(Math.min(i, BUCKETS - 1));
+            }
+        }
+        return 0;
+    }
+}
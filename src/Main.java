@@ -1,15 +1,78 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
 
 public class Main
 {
     public static void main(String[] args)
     {
-        System.out.println("Welcome to the P2P System! Valid commands are: search <keyword>, download <replyNum>, and exit.");
-        Node thisPC = new Node(args[1]);
-        if(!args[0].equalsIgnoreCase("none"))
+        System.out.println("Welcome to the P2P System! Valid commands are: search <keyword> [replies], walk <keyword> [replies] [walkers], lookup <name>, download <replyNum>, and exit.");
+        NodeConfig config = NodeConfig.defaults();
+        if(args.length > 2)
+        {
+            config = config.withPort(Integer.parseInt(args[2]));
+        }
+        if(args.length > 3)
+        {
+            config = config.withBaseDirectory(Paths.get(args[3]));
+        }
+        if(args.length > 4)
+        {
+            try
+            {
+                config = config.withBindAddress(InetAddress.getByName(args[4]));
+            }
+            catch(UnknownHostException e)
+            {
+                System.err.println("Error resolving bind address: " + e.getMessage());
+                return;
+            }
+        }
+        if(args.length > 5)
+        {
+            config = config.withMetricsPort(Integer.parseInt(args[5]));
+        }
+        for(int i = 6; i < args.length; i++)
         {
-            thisPC.joinNetwork(args[0]);
+            if(args[i].equalsIgnoreCase("virtual"))
+            {
+                config = config.withVirtualThreads(true);
+                if(!Node.hasVirtualThreads())
+                {
+                    System.err.println("Virtual threads need JDK 21 or later, using platform threads.");
+                }
+            }
+            else if(args[i].equalsIgnoreCase("dht"))
+            {
+                config = config.withDht(true);
+            }
+            else if(args[i].equalsIgnoreCase("direct"))
+            {
+                config = config.withDirectReplies(true);
+            }
+            else if(args[i].startsWith("slots="))
+            {
+                config = config.withUploadLimits(Integer.parseInt(args[i].substring(6)), config.getUploadRate(),
+                        config.getHostUploadRate());
+            }
+            else if(args[i].startsWith("upload="))
+            {
+                config = config.withUploadLimits(config.getUploadSlots(), 1024 * Long.parseLong(args[i].substring(7)),
+                        config.getHostUploadRate());
+            }
+            else if(args[i].startsWith("host-upload="))
+            {
+                config = config.withUploadLimits(config.getUploadSlots(), config.getUploadRate(),
+                        1024 * Long.parseLong(args[i].substring(12)));
+            }
         }
+        Node thisPC = new Node(args[1], config);
         thisPC.run();
-        thisPC.clientLoop();
+        Console console = new Console(new NodeClient(thisPC));
+        if(!args[0].equalsIgnoreCase("none"))
+        {
+            console.join(args[0]);
+        }
+        console.run();
     }
 }
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+//A decoded protocol message. See WireCodec for the binary layout of each type.
+public final class Message
+{
+    //Message types.
+    public final static byte JOIN = 1;
+    public final static byte LEAVING = 2;
+    public final static byte SEARCH = 3;
+    public final static byte REPLY = 4;
+    public final static byte FILE_REQUEST = 5;
+    public final static byte SUMMARY = 6;
+    public final static byte WALK = 7;
+    public final static byte WALK_CHECK = 8;
+    public final static byte WALK_STATUS = 9;
+    public final static byte HEARTBEAT = 10;
+    public final static byte DHT_FIND_NODE = 11;
+    public final static byte DHT_FIND_VALUE = 12;
+    public final static byte DHT_STORE = 13;
+    public final static byte DHT_VALUE = 14;
+    public final static byte DHT_NODES = 15;
+    public final static byte REPLY_ACK = 16;
+
+    //Class constants.
+    private final static String[] NO_FIELDS = new String[0];
+    private final static long[] NO_NUMBERS = new long[0];
+    private final static byte[] NO_DATA = new byte[0];
+
+    //Instance variables and constants.
+    private final byte type;
+    private final SearchId searchId;
+    private final int hopCount;
+    private final String[] fields;
+    private final long[] numbers;
+    private final byte[] data;
+
+    Message(byte type, SearchId searchId, int hopCount, String[] fields, long[] numbers, byte[] data)
+    {
+        this.type = type;
+        this.searchId = searchId;
+        this.hopCount = hopCount;
+        this.fields = fields;
+        this.numbers = numbers;
+        this.data = data;
+    }
+
+    //Sent first on every link. Carries the port the sender listens on, since the link's own port is ephemeral.
+    public static Message join(int port)
+    {
+        return new Message(JOIN, null, 0, NO_FIELDS, new long[] {port}, NO_DATA);
+    }
+
+    //Departure notice. The neighbor chosen to take over passes the leaving node's neighbors.
+    public static Message leaving(List<String> neighbors)
+    {
+        return new Message(LEAVING, null, 0, neighbors.toArray(NO_FIELDS), NO_NUMBERS, NO_DATA);
+    }
+
+    public static Message search(SearchId searchId, int hopCount, String keyword)
+    {
+        return new Message(SEARCH, searchId, hopCount, new String[] {keyword}, NO_NUMBERS, NO_DATA);
+    }
+
+    //Query hit. Carries the file's size and per-chunk hashes so downloads can be split and verified,
+    //and the hop count the responder received so the initiator can tell how far away it was.
+    public static Message reply(SearchId searchId, int hopsLeft, String fileKeyword, String location, FileManifest manifest)
+    {
+        return new Message(REPLY, searchId, hopsLeft, new String[] {fileKeyword, location},
+                new long[] {manifest.getSize()}, manifest.getHashes());
+    }
+
+    //Acknowledges a reply that came straight from the responder, so it does not resend it along the search path.
+    public static Message replyAck(SearchId searchId, String fileKeyword, String location)
+    {
+        return new Message(REPLY_ACK, searchId, 0, new String[] {fileKeyword, location}, NO_NUMBERS, NO_DATA);
+    }
+
+    //Requests length bytes of a file starting at offset. A negative length requests the rest of the file.
+    //Codecs is the mask of BlockCompression codecs the sender accepts, 0 for the bytes as they are. A compressed
+    //response covers at most BlockCompression.MAX_RANGE bytes, and its length says how many.
+    public static Message fileRequest(String file, long offset, long length, int codecs)
+    {
+        return new Message(FILE_REQUEST, null, 0, new String[] {file}, new long[] {offset, length, codecs}, NO_DATA);
+    }
+
+    //Content summary of the keywords reachable through the sender, exchanged periodically between neighbors.
+    public static Message summary(AttenuatedBloomFilter filter)
+    {
+        return new Message(SUMMARY, null, 0, NO_FIELDS, NO_NUMBERS, filter.toBytes());
+    }
+
+    //Random walker of a search. The hop count is the number of steps it may take before checking back with the initiator.
+    public static Message walk(SearchId searchId, int steps, String keyword)
+    {
+        return new Message(WALK, searchId, steps, new String[] {keyword}, NO_NUMBERS, NO_DATA);
+    }
+
+    //Sent straight to the initiator by the node holding a walker whose steps have run out.
+    public static Message walkCheck(SearchId searchId)
+    {
+        return new Message(WALK_CHECK, searchId, 0, NO_FIELDS, NO_NUMBERS, NO_DATA);
+    }
+
+    //The initiator's answer to a check-back: the number of further steps granted, or 0 to stop the walker.
+    public static Message walkStatus(SearchId searchId, int steps)
+    {
+        return new Message(WALK_STATUS, searchId, steps, NO_FIELDS, NO_NUMBERS, NO_DATA);
+    }
+
+    //Sent periodically over every neighbor link so the neighbor can tell this node is still alive.
+    public static Message heartbeat()
+    {
+        return new Message(HEARTBEAT, null, 0, NO_FIELDS, NO_NUMBERS, NO_DATA);
+    }
+
+    //DHT request for the contacts closest to the name's key. Every DHT request ends with the name it is about
+    //and the address of the requesting node, which the receiver adds to its routing table.
+    public static Message dhtFindNode(String name, String sender)
+    {
+        return new Message(DHT_FIND_NODE, null, 0, new String[] {name, sender}, NO_NUMBERS, NO_DATA);
+    }
+
+    //DHT request for the files stored under the name, or failing that the contacts closest to its key.
+    public static Message dhtFindValue(String name, String sender)
+    {
+        return new Message(DHT_FIND_VALUE, null, 0, new String[] {name, sender}, NO_NUMBERS, NO_DATA);
+    }
+
+    //Asks the receiver to store that the file is available at the location, under the name.
+    public static Message dhtStore(String name, String fileKeyword, String location, FileManifest manifest, String sender)
+    {
+        return new Message(DHT_STORE, null, 0, new String[] {fileKeyword, location, name, sender},
+                new long[] {manifest.getSize()}, manifest.getHashes());
+    }
+
+    //One file stored under the name asked for. Sent ahead of the DHT_NODES message ending the response.
+    public static Message dhtValue(String fileKeyword, String location, FileManifest manifest)
+    {
+        return new Message(DHT_VALUE, null, 0, new String[] {fileKeyword, location},
+                new long[] {manifest.getSize()}, manifest.getHashes());
+    }
+
+    //Contacts closest to the key asked for. Ends the response to every DHT request.
+    public static Message dhtNodes(List<String> contacts)
+    {
+        return new Message(DHT_NODES, null, 0, contacts.toArray(NO_FIELDS), NO_NUMBERS, NO_DATA);
+    }
+
+    //Lower-case name of a message type, e.g. for metric labels.
+    public static String getTypeName(byte type)
+    {
+        switch(type)
+        {
+            case JOIN: return "join";
+            case LEAVING: return "leaving";
+            case SEARCH: return "search";
+            case REPLY: return "reply";
+            case REPLY_ACK: return "reply_ack";
+            case FILE_REQUEST: return "file_request";
+            case SUMMARY: return "summary";
+            case WALK: return "walk";
+            case WALK_CHECK: return "walk_check";
+            case WALK_STATUS: return "walk_status";
+            case HEARTBEAT: return "heartbeat";
+            case DHT_FIND_NODE: return "dht_find_node";
+            case DHT_FIND_VALUE: return "dht_find_value";
+            case DHT_STORE: return "dht_store";
+            case DHT_VALUE: return "dht_value";
+            case DHT_NODES: return "dht_nodes";
+            default: return "unknown_" + type;
+        }
+    }
+
+    public byte getType()
+    {
+        return type;
+    }
+
+    public SearchId getSearchId()
+    {
+        return searchId;
+    }
+
+    public int getHopCount()
+    {
+        return hopCount;
+    }
+
+    public String getKeyword()
+    {
+        return fields[0];
+    }
+
+    public String getFileKeyword()
+    {
+        return fields[0];
+    }
+
+    public String getLocation()
+    {
+        return fields[1];
+    }
+
+    public String getFile()
+    {
+        return fields[0];
+    }
+
+    public List<String> getNeighbors()
+    {
+        return Arrays.asList(fields);
+    }
+
+    public List<String> getContacts()
+    {
+        return Arrays.asList(fields);
+    }
+
+    //Name a DHT request is about.
+    public String getName()
+    {
+        return fields[fields.length - 2];
+    }
+
+    //Address of the node that sent a DHT request.
+    public String getSender()
+    {
+        return fields[fields.length - 1];
+    }
+
+    //True for the types that carry a file manifest, whose size and hashes WireCodec checks against each other.
+    public boolean hasManifest()
+    {
+        return type == REPLY || type == DHT_STORE || type == DHT_VALUE;
+    }
+
+    public FileManifest getManifest()
+    {
+        return new FileManifest(numbers[0], data);
+    }
+
+    public AttenuatedBloomFilter getSummary() throws IOException
+    {
+        return AttenuatedBloomFilter.fromBytes(data);
+    }
+
+    public int getPort()
+    {
+        return (int) numbers[0];
+    }
+
+    public long getOffset()
+    {
+        return numbers[0];
+    }
+
+    public long getLength()
+    {
+        return numbers[1];
+    }
+
+    public int getCodecs()
+    {
+        return (int) numbers[2];
+    }
+
+    String[] getFields()
+    {
+        return fields;
+    }
+
+    long[] getNumbers()
+    {
+        return numbers;
+    }
+
+    byte[] getData()
+    {
+        return data;
+    }
+}
@@ -0,0 +1,351 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+//Per-node counters and latency histograms. Everything on the message path is a LongAdder increment, so
+//recording costs next to nothing under contention. The values are published as a JMX MBean and, if a
+//metrics port is configured, as Prometheus text on http://<loopback>:<port>/metrics.
+public class Metrics implements MetricsMBean
+{
+    //Counters kept by every node, with the name and help text they are exported under.
+    public enum Counter
+    {
+        SEARCHES_RECEIVED("p2p_searches_received_total", "Searches received from neighbors, including duplicates."),
+        SEARCHES_DUPLICATE("p2p_searches_duplicate_total", "Searches dropped because they had been seen before."),
+        SEARCHES_ANSWERED("p2p_searches_answered_total", "Searches answered from the local index or the query-hit cache."),
+        SEARCHES_FORWARDED("p2p_searches_forwarded_total", "Search messages forwarded to neighbors."),
+        SEARCHES_UNROUTED("p2p_searches_unrouted_total", "Searches with hops left that were sent to no neighbor."),
+        SEARCHES_STARTED("p2p_searches_started_total", "Searches, walks and lookups started by this node."),
+        RINGS_STARTED("p2p_rings_started_total", "Rings of expanding-ring searches sent by this node."),
+        REPLIES_RELAYED("p2p_replies_relayed_total", "Replies relayed toward the node that started the search."),
+        REPLIES_DIRECT("p2p_replies_direct_total", "Replies sent straight to the node that started the search over UDP."),
+        REPLIES_DIRECT_FALLBACK("p2p_replies_direct_fallback_total",
+                "Direct replies that were not acknowledged in time and went back along the search path instead."),
+        BYTES_UPLOADED("p2p_uploaded_bytes_total", "File bytes queued for sending to other nodes."),
+        BYTES_DOWNLOADED("p2p_downloaded_bytes_total", "File bytes received from other nodes."),
+        NEIGHBORS_FAILED("p2p_neighbors_failed_total", "Neighbors dropped after their heartbeats stopped or their link broke."),
+        NEIGHBORS_RECONNECTED("p2p_neighbors_reconnected_total", "Dropped neighbors that were reconnected.");
+
+        private final String metricName;
+        private final String help;
+
+        Counter(String metricName, String help)
+        {
+            this.metricName = metricName;
+            this.help = help;
+        }
+    }
+
+    //Instance variables and constants.
+    private final LongAdder[] counters;
+    private final LongAdder[] messagesSent;
+    private final LongAdder[] messagesReceived;
+    private final LatencyHistogram forwardLatency;
+    private final LatencyHistogram localSearchTime;
+    private final IntSupplier activeConnections;
+    private final IntSupplier neighbors;
+
+    public Metrics(IntSupplier activeConnections, IntSupplier neighbors)
+    {
+        this.counters = newAdders(Counter.values().length);
+        this.messagesSent = newAdders(Byte.MAX_VALUE + 1);
+        this.messagesReceived = newAdders(Byte.MAX_VALUE + 1);
+        this.forwardLatency = new LatencyHistogram();
+        this.localSearchTime = new LatencyHistogram();
+        this.activeConnections = activeConnections;
+        this.neighbors = neighbors;
+    }
+
+    private static LongAdder[] newAdders(int count)
+    {
+        LongAdder[] adders = new LongAdder[count];
+        for(int i = 0; i < count; i++)
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public void increment(Counter counter)
+    {
+        counters[counter.ordinal()].increment();
+    }
+
+    public void add(Counter counter, long amount)
+    {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    public long get(Counter counter)
+    {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public void messageSent(byte type)
+    {
+        messagesSent[type].increment();
+    }
+
+    public void messageReceived(byte type)
+    {
+        messagesReceived[type].increment();
+    }
+
+    public long getMessagesSent(byte type)
+    {
+        return messagesSent[type].sum();
+    }
+
+    //Time from a search arriving at this node until it has been forwarded to its next hops.
+    public LatencyHistogram getForwardLatency()
+    {
+        return forwardLatency;
+    }
+
+    //Time taken by lookups in the local keyword index.
+    public LatencyHistogram getLocalSearchTime()
+    {
+        return localSearchTime;
+    }
+
+    //Registers the MBean under p2p:type=Node,name="<address>:<port>" with the platform MBean server.
+    public void register(String address)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("p2p:type=Node,name=" + ObjectName.quote(address)));
+        }
+        catch(JMException e)
+        {
+            System.err.println("Error registering metrics MBean: " + e.getMessage());
+        }
+    }
+
+    //Serves the metrics in Prometheus text format at /metrics on the given address.
+    public void startHttpServer(InetSocketAddress address) throws IOException
+    {
+        HttpServer httpServer = HttpServer.create(address, 0);
+        httpServer.createContext("/metrics", exchange ->
+        {
+            byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream out = exchange.getResponseBody())
+            {
+                out.write(body);
+            }
+        });
+        httpServer.start();
+    }
+
+    //Renders every metric in the Prometheus text exposition format.
+    public String toPrometheusText()
+    {
+        StringBuilder text = new StringBuilder();
+        for(Counter counter: Counter.values())
+        {
+            header(text, counter.metricName, counter.help, "counter");
+            text.append(counter.metricName).append(' ').append(get(counter)).append('\n');
+        }
+        messages(text, "p2p_messages_sent_total", "Messages sent, by type.", messagesSent);
+        messages(text, "p2p_messages_received_total", "Messages received, by type.", messagesReceived);
+        header(text, "p2p_active_connections", "Open connections, including neighbor links and transfers.", "gauge");
+        text.append("p2p_active_connections ").append(getActiveConnections()).append('\n');
+        header(text, "p2p_neighbors", "Current neighbors.", "gauge");
+        text.append("p2p_neighbors ").append(getNeighbors()).append('\n');
+        histogram(text, "p2p_forward_latency_seconds", "Time from receiving a search to forwarding it.", forwardLatency);
+        histogram(text, "p2p_local_search_seconds", "Time taken by local index lookups.", localSearchTime);
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type)
+    {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void messages(StringBuilder text, String name, String help, LongAdder[] counts)
+    {
+        header(text, name, help, "counter");
+        for(int type = 0; type < counts.length; type++)
+        {
+            long count = counts[type].sum();
+            if(count > 0)
+            {
+                text.append(name).append("{type=\"").append(Message.getTypeName((byte) type)).append("\"} ")
+                        .append(count).append('\n');
+            }
+        }
+    }
+
+    private static void histogram(StringBuilder text, String name, String help, LatencyHistogram histogram)
+    {
+        header(text, name, help, "histogram");
+        long cumulative = 0;
+        for(int bucket = 0; bucket <= LatencyHistogram.BUCKETS; bucket++)
+        {
+            cumulative += histogram.getBucketCount(bucket);
+            String bound = (bucket < LatencyHistogram.BUCKETS) ? Double.toString(LatencyHistogram.getBucketBound(bucket) / 1e9) : "+Inf";
+            text.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        text.append(name).append("_sum ").append(histogram.getSumNanos() / 1e9).append('\n');
+        text.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    @Override
+    public long getSearchesReceived()
+    {
+        return get(Counter.SEARCHES_RECEIVED);
+    }
+
+    @Override
+    public long getSearchesDuplicate()
+    {
+        return get(Counter.SEARCHES_DUPLICATE);
+    }
+
+    @Override
+    public long getSearchesAnswered()
+    {
+        return get(Counter.SEARCHES_ANSWERED);
+    }
+
+    @Override
+    public long getSearchesForwarded()
+    {
+        return get(Counter.SEARCHES_FORWARDED);
+    }
+
+    @Override
+    public long getSearchesUnrouted()
+    {
+        return get(Counter.SEARCHES_UNROUTED);
+    }
+
+    @Override
+    public long getSearchesStarted()
+    {
+        return get(Counter.SEARCHES_STARTED);
+    }
+
+    @Override
+    public long getRingsStarted()
+    {
+        return get(Counter.RINGS_STARTED);
+    }
+
+    @Override
+    public long getRepliesRelayed()
+    {
+        return get(Counter.REPLIES_RELAYED);
+    }
+
+    @Override
+    public long getRepliesDirect()
+    {
+        return get(Counter.REPLIES_DIRECT);
+    }
+
+    @Override
+    public long getRepliesDirectFallback()
+    {
+        return get(Counter.REPLIES_DIRECT_FALLBACK);
+    }
+
+    @Override
+    public long getBytesUploaded()
+    {
+        return get(Counter.BYTES_UPLOADED);
+    }
+
+    @Override
+    public long getBytesDownloaded()
+    {
+        return get(Counter.BYTES_DOWNLOADED);
+    }
+
+    @Override
+    public long getNeighborsFailed()
+    {
+        return get(Counter.NEIGHBORS_FAILED);
+    }
+
+    @Override
+    public long getNeighborsReconnected()
+    {
+        return get(Counter.NEIGHBORS_RECONNECTED);
+    }
+
+    @Override
+    public long getMessagesSent()
+    {
+        return sum(messagesSent);
+    }
+
+    @Override
+    public long getMessagesReceived()
+    {
+        return sum(messagesReceived);
+    }
+
+    private static long sum(LongAdder[] adders)
+    {
+        long total = 0;
+        for(LongAdder adder: adders)
+        {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public int getActiveConnections()
+    {
+        return activeConnections.getAsInt();
+    }
+
+    @Override
+    public int getNeighbors()
+    {
+        return neighbors.getAsInt();
+    }
+
+    @Override
+    public double getForwardAmplification()
+    {
+        long fresh = get(Counter.SEARCHES_RECEIVED) - get(Counter.SEARCHES_DUPLICATE);
+        return (fresh == 0) ? 0 : (double) get(Counter.SEARCHES_FORWARDED) / fresh;
+    }
+
+    @Override
+    public long getForwardLatencyP50Micros()
+    {
+        return forwardLatency.getQuantileNanos(0.50) / 1000;
+    }
+
+    @Override
+    public long getForwardLatencyP99Micros()
+    {
+        return forwardLatency.getQuantileNanos(0.99) / 1000;
+    }
+
+    @Override
+    public long getLocalSearchP50Micros()
+    {
+        return localSearchTime.getQuantileNanos(0.50) / 1000;
+    }
+
+    @Override
+    public long getLocalSearchP99Micros()
+    {
+        return localSearchTime.getQuantileNanos(0.99) / 1000;
+    }
+}
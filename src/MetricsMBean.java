@@ -0,0 +1,51 @@
+//Management interface of a node's metrics, as seen in JConsole or any other JMX client.
+//Latencies are in microseconds and taken from the histogram buckets, so they are upper bounds.
+public interface MetricsMBean
+{
+    long getSearchesReceived();
+
+    long getSearchesDuplicate();
+
+    long getSearchesAnswered();
+
+    long getSearchesForwarded();
+
+    long getSearchesUnrouted();
+
+    long getSearchesStarted();
+
+    long getRingsStarted();
+
+    long getRepliesRelayed();
+
+    long getRepliesDirect();
+
+    long getRepliesDirectFallback();
+
+    long getBytesUploaded();
+
+    long getBytesDownloaded();
+
+    long getNeighborsFailed();
+
+    long getNeighborsReconnected();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    int getActiveConnections();
+
+    int getNeighbors();
+
+    //Search messages forwarded per new search received. Nodes far above their degree minus one amplify floods.
+    double getForwardAmplification();
+
+    long getForwardLatencyP50Micros();
+
+    long getForwardLatencyP99Micros();
+
+    long getLocalSearchP50Micros();
+
+    long getLocalSearchP99Micros();
+}
@@ -1,443 +1,1772 @@
 import java.net.*;
 import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class Node implements Runnable
 {
     //Class constants.
     private final static int MAX_HOP_COUNT = 16;
-    private final static int PORT = 5000;
+    private final static int DEPART_TIMEOUT_MS = 2000;
+    private final static int MAX_TRACKED_SEARCHES = 100000;
+    private final static int DEFAULT_REPLIES_WANTED = 3;
+    private final static int SUMMARY_INTERVAL_MS = 10000;
+    public final static int DEFAULT_WALKERS = 4;
+    private final static int WALK_CHECK_INTERVAL = 4;
+    private final static int MAX_WALK_STEPS = 32;
+    private final static int WALK_CHECK_TIMEOUT_MS = 2000;
+    private final static int MAX_CACHED_KEYWORDS = 4096;
+    private final static int MAX_CACHED_HITS_PER_KEYWORD = 8;
+    private final static int CACHED_HIT_TTL_MS = 60000;
+    private final static int WORKER_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+    private final static int MAX_PARALLEL_CONNECTS = 32;
+    private final static int CONNECT_TIMEOUT_MS = 2000;
+    private final static int HEARTBEAT_INTERVAL_MS = 1000;
+    private final static int MIN_HEARTBEAT_DEVIATION_MS = 200;
+    private final static int ACCEPTABLE_HEARTBEAT_PAUSE_MS = 1000;
+    private final static double PHI_THRESHOLD = 8;
+    private final static int MAX_DATAGRAM_SIZE = 1200;
+    private final static int DIRECT_REPLY_TIMEOUT_MS = 250;
+    private final static int MIN_RECONNECT_DELAY_MS = 1000;
+    private final static int MAX_RECONNECT_DELAY_MS = 60000;
+    private final static int MAX_RECONNECT_ATTEMPTS = 10;
+    private final static int DHT_CALL_TIMEOUT_MS = 2000;
+    private final static int DHT_REPUBLISH_INTERVAL_MS = 10 * 60 * 1000;
+    private final static int DHT_RECORD_TTL_MS = 3 * DHT_REPUBLISH_INTERVAL_MS;
+    private final static Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
 
     //Instance variables and constants.
-    private final String homeDirectory;
+    private final NodeConfig config;
+    private final Path home;
     private List<String> neighbors;
-    private HashMap<String, Integer> searches;
-    private HashMap<String, String> previousSearches;
-    private List<String> receivedReplies;
+    private final DuplicateCache<SearchId, String> previousSearches;
     private final ScheduledExecutorService scheduler;
-    private long searchStartTime;
+    private final ExecutorService workers;
+    private final ExecutorService connectors;
+    private final UploadScheduler uploads;
+    private final Semaphore connectSlots;
+    private final KeywordIndex index;
+    private final ContentStore store;
+    private final RttEstimator hopRtt;
+    private final DuplicateCache<SearchId, Search> searches;
+    private volatile int repliesWanted;
+    private final Selector selector;
+    private final Queue<Runnable> selectorTasks;
+    private volatile DatagramChannel datagrams;
+    private final Map<String, ScheduledFuture<?>> unacknowledgedReplies;
+    private final Map<String, Connection> links;
+    private final Map<String, Object> connectLocks;
+    private final Map<String, AttenuatedBloomFilter> summaries;
+    private final Map<Connection, IntConsumer> pendingChecks;
+    private final Map<Connection, Consumer<Message>> pendingCalls;
+    private final Dht dht;
+    private final AtomicBoolean dhtJoined;
+    private final AtomicBoolean publishing;
+    private final QueryHitCache hitCache;
+    private final FailureDetector failureDetector;
+    private final Map<String, Integer> reconnectAttempts;
+    private final Metrics metrics;
 
     //Initializes all instance variables.
     public Node(String homeDirectory)
     {
-        this.homeDirectory = homeDirectory;
-        this.neighbors = new ArrayList<>();
-        this.searches = new HashMap<>();
-        this.previousSearches = new HashMap<>();
-        this.receivedReplies = new ArrayList<>();
+        this(homeDirectory, NodeConfig.defaults());
+    }
+
+    //Initializes a node whose home directory is under the configured base directory.
+    public Node(String homeDirectory, NodeConfig config)
+    {
+        this.config = config;
+        this.home = config.getBaseDirectory().resolve(homeDirectory);
+        this.neighbors = new CopyOnWriteArrayList<>();
+        this.previousSearches = new DuplicateCache<>(TimeUnit.SECONDS.toMillis(Math.max(MAX_HOP_COUNT, MAX_WALK_STEPS)),
+                MAX_TRACKED_SEARCHES);
+        this.searches = new DuplicateCache<>(TimeUnit.SECONDS.toMillis(2 * Math.max(MAX_HOP_COUNT, MAX_WALK_STEPS)),
+                MAX_TRACKED_SEARCHES);
         this.scheduler = Executors.newSingleThreadScheduledExecutor();
-        this.searchStartTime = System.currentTimeMillis();
+        ExecutorService virtual = config.isUsingVirtualThreads() ? newVirtualThreadExecutor() : null;
+        this.workers = (virtual != null) ? virtual : Executors.newFixedThreadPool(WORKER_THREADS);
+        this.connectors = (virtual != null) ? virtual : Executors.newCachedThreadPool();
+        this.connectSlots = new Semaphore(MAX_PARALLEL_CONNECTS);
+        this.uploads = new UploadScheduler(config.getUploadSlots(), config.getUploadRate(), config.getHostUploadRate(),
+                workers, scheduler);
+        this.hopRtt = new RttEstimator();
+        this.repliesWanted = DEFAULT_REPLIES_WANTED;
+        this.store = new ContentStore(home);
+        this.index = new KeywordIndex(home.resolve("availableFiles.txt"), store);
+        this.selectorTasks = new ConcurrentLinkedQueue<>();
+        this.unacknowledgedReplies = new ConcurrentHashMap<>();
+        this.links = new ConcurrentHashMap<>();
+        this.connectLocks = new ConcurrentHashMap<>();
+        this.summaries = new ConcurrentHashMap<>();
+        this.pendingChecks = new ConcurrentHashMap<>();
+        this.pendingCalls = new ConcurrentHashMap<>();
+        this.dht = config.isDhtEnabled() ? new Dht(config.getAddress(), this::dhtCall, connectors, DHT_RECORD_TTL_MS) : null;
+        this.dhtJoined = new AtomicBoolean();
+        this.publishing = new AtomicBoolean();
+        this.hitCache = new QueryHitCache(MAX_CACHED_KEYWORDS, MAX_CACHED_HITS_PER_KEYWORD, CACHED_HIT_TTL_MS);
+        this.failureDetector = new FailureDetector(HEARTBEAT_INTERVAL_MS, MIN_HEARTBEAT_DEVIATION_MS,
+                ACCEPTABLE_HEARTBEAT_PAUSE_MS);
+        this.reconnectAttempts = new ConcurrentHashMap<>();
+        try
+        {
+            this.selector = Selector.open();
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException("Error opening selector", e);
+        }
+        //The selector also holds the keys of the server socket and the datagram socket, which are not connections.
+        this.metrics = new Metrics(() -> Math.max(0, selector.keys().size() - ((datagrams != null) ? 2 : 1)),
+                () -> neighbors.size());
+        try
+        {
+            store.load();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error loading the content store: " + e.getMessage());
+        }
+        try
+        {
+            index.load();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error loading the keyword index: " + e.getMessage());
+        }
     }
 
     @Override
     public void run()
     {
         new Thread(this::startServer).start();
+        workers.execute(this::hashCatalog);
+        long period = previousSearches.getRotationPeriodMillis();
+        scheduler.scheduleAtFixedRate(previousSearches::rotate, period, period, TimeUnit.MILLISECONDS);
+        period = searches.getRotationPeriodMillis();
+        scheduler.scheduleAtFixedRate(searches::rotate, period, period, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(() -> workers.execute(this::sendSummaries), 0, SUMMARY_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(() -> workers.execute(this::checkNeighbors), HEARTBEAT_INTERVAL_MS,
+                HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if(dht != null)
+        {
+            scheduler.scheduleAtFixedRate(() -> connectors.execute(this::publishCatalog), DHT_REPUBLISH_INTERVAL_MS,
+                    DHT_REPUBLISH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if(config.isWatchingCatalog())
+        {
+            index.watch();
+        }
+        metrics.register(config.getAddress());
+        if(config.getMetricsPort() != NodeConfig.NO_METRICS_PORT)
+        {
+            try
+            {
+                metrics.startHttpServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.getMetricsPort()));
+            }
+            catch(IOException e)
+            {
+                System.err.println("Error starting metrics endpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    //The "<address>:<port>" other nodes reach this node at.
+    public String getAddress()
+    {
+        return config.getAddress();
+    }
+
+    //The directory holding the files this node shares and downloads.
+    public Path getHome()
+    {
+        return home;
+    }
+
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    //Number of messages of the given type this node has sent so far.
+    public long getMessagesSent(byte type)
+    {
+        return metrics.getMessagesSent(type);
+    }
+
+    //Number of replies after which a search stops expanding and shows its results.
+    public void setRepliesWanted(int repliesWanted)
+    {
+        this.repliesWanted = Math.max(1, repliesWanted);
+    }
+
+    public int getRepliesWanted()
+    {
+        return repliesWanted;
+    }
+
+    //Adds a neighbor and starts expecting its heartbeats. Neighbors are also the first DHT contacts: the first one
+    //lets this node find its place in the DHT and publish its catalog.
+    public void addNeighbor(String neighbor)
+    {
+        failureDetector.watch(neighbor, now());
+        neighbors.add(neighbor);
+        if(dht != null)
+        {
+            dht.addContact(neighbor);
+            if(dhtJoined.compareAndSet(false, true))
+            {
+                connectors.execute(() ->
+                {
+                    dht.bootstrap();
+                    publishCatalog();
+                });
+            }
+        }
+    }
+
+    //Monotonic milliseconds for the failure detector.
+    private static long now()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    //Sends a heartbeat to every neighbor and drops those whose heartbeats have stopped.
+    private void checkNeighbors()
+    {
+        long now = now();
+        Message heartbeat = Message.heartbeat();
+        for(String n: neighbors)
+        {
+            if(failureDetector.phi(n, now) > PHI_THRESHOLD)
+            {
+                neighborFailed(n);
+            }
+            else
+            {
+                sendToNeighbor(n, heartbeat);
+            }
+        }
+    }
+
+    //Drops a neighbor that crashed or became unreachable without announcing its departure, so searches are no
+    //longer routed to it, and keeps trying to reconnect to it in the background.
+    private void neighborFailed(String neighbor)
+    {
+        if(!neighbors.remove(neighbor))
+        {
+            return;
+        }
+        failureDetector.unwatch(neighbor);
+        summaries.remove(neighbor);
+        hitCache.removeLocation(neighbor);
+        if(dht != null)
+        {
+            dht.removeContact(neighbor);
+        }
+        Connection link = links.remove(neighbor);
+        if(link != null)
+        {
+            link.close();
+        }
+        metrics.increment(Metrics.Counter.NEIGHBORS_FAILED);
+        System.out.println("Neighbor " + neighbor + " stopped responding. Server neighbors: " + neighbors);
+        //A hung process still accepts connections, so a neighbor failing again before its first heartbeat
+        //continues the backoff where it left off instead of starting over.
+        Integer attempt = reconnectAttempts.putIfAbsent(neighbor, 0);
+        scheduleReconnect(neighbor, (attempt == null) ? 0 : attempt);
+    }
+
+    //Retries a failed neighbor with exponential backoff, giving up after MAX_RECONNECT_ATTEMPTS.
+    private void scheduleReconnect(String neighbor, int attempt)
+    {
+        if(attempt >= MAX_RECONNECT_ATTEMPTS)
+        {
+            reconnectAttempts.remove(neighbor);
+            return;
+        }
+        reconnectAttempts.replace(neighbor, attempt + 1);
+        long delay = Math.min(MAX_RECONNECT_DELAY_MS, (long) MIN_RECONNECT_DELAY_MS << attempt);
+        scheduler.schedule(() -> connectors.execute(() -> reconnect(neighbor, attempt)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(String neighbor, int attempt)
+    {
+        //Stop if the neighbor departed cleanly or joined this node again by itself in the meantime.
+        if(!reconnectAttempts.containsKey(neighbor) || neighbors.contains(neighbor))
+        {
+            return;
+        }
+        try
+        {
+            getLink(neighbor);
+        }
+        catch(IOException e)
+        {
+            scheduleReconnect(neighbor, attempt + 1);
+            return;
+        }
+        if(!neighbors.contains(neighbor))
+        {
+            addNeighbor(neighbor);
+        }
+        metrics.increment(Metrics.Counter.NEIGHBORS_RECONNECTED);
+        System.out.println("Reconnected to " + neighbor + ". Server neighbors: " + neighbors);
+        sendSummaries();
+    }
+
+    //The node joins the network as a neighbor of the "host[:port]" node.
+    //The connection opened here stays up and carries all further control traffic to that neighbor.
+    public void joinNetwork(String host)
+    {
+        try
+        {
+            join(host);
+            System.out.println("Server neighbors: " + neighbors);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error joining network! " + e);
+        }
+    }
+
+    //Joins as a neighbor of the "host[:port]" node and returns once the link is up. Blocks while connecting.
+    public void join(String host) throws IOException
+    {
+        InetSocketAddress address = NodeConfig.toSocketAddress(host);
+        if(address.isUnresolved())
+        {
+            throw new UnknownHostException(address.getHostString());
+        }
+        String neighbor = address.getAddress().getHostAddress() + ":" + address.getPort();
+        getLink(neighbor);
+        if(!neighbors.contains(neighbor))
+        {
+            addNeighbor(neighbor);
+        }
+    }
+
+    public List<String> getNeighbors()
+    {
+        return new ArrayList<>(neighbors);
+    }
+
+    //Returns the persistent connection to a neighbor, reconnecting if the previous one was closed.
+    //Every new outbound link announces itself with a join message so the neighbor adds this node and reuses the link.
+    private Connection getLink(String neighbor) throws IOException
+    {
+        Connection link = links.get(neighbor);
+        if(link != null && link.isOpen())
+        {
+            return link;
+        }
+        synchronized(connectLocks.computeIfAbsent(neighbor, n -> new Object()))
+        {
+            link = links.get(neighbor);
+            if(link != null && link.isOpen())
+            {
+                return link;
+            }
+            link = connect(neighbor);
+            link.setPeer(neighbor);
+            send(link, Message.join(config.getPort()));
+            links.put(neighbor, link);
+            return link;
+        }
+    }
+
+    //Opens a connection to the node at "<address>:<port>", giving up after CONNECT_TIMEOUT_MS.
+    private Connection connect(String address) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        try
+        {
+            channel.socket().connect(NodeConfig.toSocketAddress(address), CONNECT_TIMEOUT_MS);
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            //A malformed or unresolvable address.
+            channel.close();
+            throw new IOException("Cannot connect to " + address + ": " + e.getMessage(), e);
+        }
+        return register(channel);
+    }
+
+    //Opens the link to a newly adopted neighbor so that it learns about this node.
+    private void linkNeighbor(String neighbor)
+    {
+        try
+        {
+            getLink(neighbor);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error linking to " + neighbor + ": " + e.getMessage());
+        }
+    }
+
+    //Sends a single control message to a neighbor over its persistent link. Sending on an open link only queues
+    //the message, but opening a link blocks until the connect finishes or fails, so that happens on a connector
+    //thread. A fan-out to several neighbors then takes as long as the slowest connect rather than all of them.
+    private void sendToNeighbor(String neighbor, Message message)
+    {
+        Connection link = links.get(neighbor);
+        if(link != null && link.isOpen())
+        {
+            send(link, message);
+            return;
+        }
+        connectors.execute(() -> connectAndSend(neighbor, message));
+    }
+
+    //Connects to a neighbor and sends the message, with at most MAX_PARALLEL_CONNECTS connects in progress.
+    private void connectAndSend(String neighbor, Message message)
+    {
+        try
+        {
+            connectSlots.acquire();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try
+        {
+            send(getLink(neighbor), message);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error sending to " + neighbor + ": " + e.getMessage());
+        }
+        finally
+        {
+            connectSlots.release();
+        }
+    }
+
+    //Executors.newVirtualThreadPerTaskExecutor(), or null before JDK 21. Looked up reflectively so the node
+    //still compiles and runs on older JDKs.
+    private static Method findVirtualThreadExecutor()
+    {
+        try
+        {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch(NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    public static boolean hasVirtualThreads()
+    {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    //Executor starting a virtual thread per task, or null when the JDK has no virtual threads.
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        if(NEW_VIRTUAL_THREAD_EXECUTOR == null)
+        {
+            return null;
+        }
+        try
+        {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        }
+        catch(ReflectiveOperationException e)
+        {
+            System.err.println("Error starting virtual threads, using platform threads: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //Queues a message on a connection, counting it by type.
+    private void send(Connection connection, Message message)
+    {
+        metrics.messageSent(message.getType());
+        connection.send(message);
+    }
+
+    //The "<address>:<port>" the node at the other end of the connection reaches this node at.
+    private String localAddress(Connection connection)
+    {
+        return connection.getLocalAddress() + ":" + config.getPort();
+    }
+
+    //Registers a connected channel with the selector. Registration must run on the selector thread,
+    //so it is queued there and this method waits until it has happened.
+    private Connection register(SocketChannel channel) throws IOException
+    {
+        channel.configureBlocking(false);
+        CompletableFuture<Connection> registered = new CompletableFuture<>();
+        selectorTasks.add(() ->
+        {
+            try
+            {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                Connection connection = new Connection(channel, key);
+                key.attach(connection);
+                registered.complete(connection);
+            }
+            catch(IOException e)
+            {
+                registered.completeExceptionally(e);
+            }
+        });
+        selector.wakeup();
+        try
+        {
+            return registered.get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+            channel.close();
+            throw new IOException("Error registering connection", e);
+        }
+    }
+
+    //Starts the server and services all connections from a single selector thread.
+    //Complete request lines are handed to the worker pool and handled by clientHandler().
+    //Connections uploading files are serviced after all others that are ready, so messages go out first.
+    //Replies sent straight to this node arrive as datagrams on the same port.
+    public void startServer()
+    {
+        try
+        {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(config.getBindAddress(), config.getPort()));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            openDatagrams();
+            List<SelectionKey> bulk = new ArrayList<>();
+            while(true)
+            {
+                selector.select();
+                Runnable task;
+                while((task = selectorTasks.poll()) != null)
+                {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid())
+                    {
+                        continue;
+                    }
+                    if(key.isAcceptable())
+                    {
+                        acceptClient(server);
+                    }
+                    else if(key.channel() == datagrams)
+                    {
+                        receiveDatagrams();
+                    }
+                    else if(((Connection) key.attachment()).isBulk())
+                    {
+                        bulk.add(key);
+                    }
+                    else
+                    {
+                        serviceConnection(key);
+                    }
+                }
+                for(SelectionKey key: bulk)
+                {
+                    if(key.isValid())
+                    {
+                        serviceConnection(key);
+                    }
+                }
+                bulk.clear();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error starting server! " + e);
+            e.printStackTrace();
+        }
+    }
+
+    //Binds the datagram socket replies are received on. Without it replies to this node's searches all come back along
+    //the search path, which responders fall back to when their direct replies go unacknowledged.
+    private void openDatagrams()
+    {
+        try
+        {
+            DatagramChannel channel = DatagramChannel.open();
+            try
+            {
+                channel.bind(new InetSocketAddress(config.getBindAddress(), config.getPort()));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+            catch(IOException e)
+            {
+                channel.close();
+                throw e;
+            }
+            datagrams = channel;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error opening the datagram socket for direct replies: " + e.getMessage());
+        }
+    }
+
+    //Receives every datagram waiting. Replies to this node's searches are acknowledged and handed to the workers.
+    //Called by the selector thread only.
+    private void receiveDatagrams()
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE + 1);
+        while(true)
+        {
+            buffer.clear();
+            SocketAddress source;
+            Message message;
+            try
+            {
+                source = datagrams.receive(buffer);
+                if(source == null)
+                {
+                    return;
+                }
+                buffer.flip();
+                message = WireCodec.decode(buffer);
+            }
+            catch(IOException e)
+            {
+                System.err.println("Error receiving datagram: " + e.getMessage());
+                continue;
+            }
+            if(message == null)
+            {
+                continue;
+            }
+            metrics.messageReceived(message.getType());
+            if(message.getType() == Message.REPLY && isInitiator(message.getSearchId()))
+            {
+                Message ack = Message.replyAck(message.getSearchId(), message.getFileKeyword(), message.getLocation());
+                sendDatagram(WireCodec.encode(ack), ack.getType(), source);
+                workers.execute(() -> processReply(message, true));
+            }
+            else if(message.getType() == Message.REPLY_ACK)
+            {
+                ScheduledFuture<?> fallback = unacknowledgedReplies.remove(replyKey(message));
+                if(fallback != null)
+                {
+                    fallback.cancel(false);
+                }
+            }
+        }
+    }
+
+    //Sends an encoded message in one datagram. Returns false if it was not sent, e.g. because the socket buffer is full.
+    private boolean sendDatagram(ByteBuffer frame, byte type, SocketAddress target)
+    {
+        try
+        {
+            if(datagrams.send(frame, target) == 0)
+            {
+                return false;
+            }
+            metrics.messageSent(type);
+            return true;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error sending datagram to " + target + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    //Accepts a pending connection and registers it for reading. Neighbors identify themselves with a join message.
+    private void acceptClient(ServerSocketChannel server) throws IOException
+    {
+        SocketChannel client = server.accept();
+        if(client == null)
+        {
+            return;
+        }
+        client.configureBlocking(false);
+        SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(client, key));
+    }
+
+    //Reads from and writes to a ready connection. Called by the selector thread only.
+    private void serviceConnection(SelectionKey key)
+    {
+        Connection connection = (Connection) key.attachment();
+        try
+        {
+            if(key.isReadable())
+            {
+                List<Message> messages = connection.read();
+                if(messages == null)
+                {
+                    linkClosed(connection);
+                    connection.closeWhenFlushed();
+                    return;
+                }
+                long arrival = System.nanoTime();
+                for(Message message: messages)
+                {
+                    metrics.messageReceived(message.getType());
+                    //Responses to this node's DHT requests are collected right here, which keeps them in order.
+                    Consumer<Message> call = pendingCalls.get(connection);
+                    if(call != null)
+                    {
+                        call.accept(message);
+                        continue;
+                    }
+                    //The peer is named before any handler runs, so messages following the join are attributed to it.
+                    if(message.getType() == Message.JOIN)
+                    {
+                        connection.setPeer(connection.getRemoteAddress() + ":" + message.getPort());
+                    }
+                    else if(message.getType() == Message.LEAVING)
+                    {
+                        connection.markDeparted();
+                    }
+                    workers.execute(() -> clientHandler(connection, message, arrival));
+                }
+            }
+            if(key.isValid() && key.isWritable())
+            {
+                connection.flush();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error handling client! " + e);
+            linkClosed(connection);
+            connection.close();
+        }
+    }
+
+    //Forgets a closed connection. A neighbor link closing without a departure notice means the neighbor's
+    //process died, which is noticed here well before its heartbeats would be missed.
+    private void linkClosed(Connection connection)
+    {
+        String peer = connection.getPeer();
+        if(links.remove(peer, connection) && !connection.hasDeparted() && neighbors.contains(peer))
+        {
+            workers.execute(() -> neighborFailed(peer));
+        }
+    }
+
+    //Handles all requests that a client can make. Additionally, handles replies received from other servers.
+    public void clientHandler(Connection client, Message message)
+    {
+        clientHandler(client, message, System.nanoTime());
+    }
+
+    //Handles a message that arrived at the given System.nanoTime(), which times how long forwarding took.
+    private void clientHandler(Connection client, Message message, long arrival)
+    {
+        switch(message.getType())
+        {
+            //Handle neighbors joining. The connection they opened becomes the link used to reach them.
+            case Message.JOIN:
+            {
+                String address = client.getPeer();
+                if(!neighbors.contains(address))
+                {
+                    addNeighbor(address);
+                    System.out.println("Server neighbors: " + neighbors);
+                }
+                Connection link = links.get(address);
+                if(link == null || !link.isOpen())
+                {
+                    links.put(address, client);
+                }
+                workers.execute(this::sendSummaries);
+                break;
+            }
+
+            //Handle node departures. Neighbors inherited from the leaving node are linked right away,
+            //and cached hits for files held by the leaving node are forgotten.
+            case Message.LEAVING:
+            {
+                String address = client.getPeer();
+                neighbors.remove(address);
+                failureDetector.unwatch(address);
+                if(dht != null)
+                {
+                    dht.removeContact(address);
+                }
+                reconnectAttempts.remove(address);
+                summaries.remove(address);
+                hitCache.removeLocation(address);
+                Connection link = links.remove(address);
+                if(link != null)
+                {
+                    link.closeWhenFlushed();
+                }
+                for(String n: message.getNeighbors())
+                {
+                    if(!n.isEmpty() && !n.equals(localAddress(client)) && !n.equals(address) && !neighbors.contains(n))
+                    {
+                        addNeighbor(n);
+                        workers.execute(() -> linkNeighbor(n));
+                    }
+                }
+                System.out.println("Server neighbors: " + neighbors);
+                break;
+            }
+
+            //Answer DHT requests. Nodes outside the DHT answer with no contacts, so the requester moves on at once.
+            case Message.DHT_FIND_NODE:
+            case Message.DHT_FIND_VALUE:
+            case Message.DHT_STORE:
+            {
+                List<Message> response = (dht != null) ? dht.handle(message)
+                        : Collections.singletonList(Message.dhtNodes(Collections.emptyList()));
+                for(Message m: response)
+                {
+                    send(client, m);
+                }
+                break;
+            }
+
+            //Note that the neighbor is alive.
+            case Message.HEARTBEAT:
+                failureDetector.heartbeat(client.getPeer(), TimeUnit.NANOSECONDS.toMillis(arrival));
+                reconnectAttempts.remove(client.getPeer());
+                break;
+
+            //Record a neighbor's summary of the keywords reachable through it.
+            case Message.SUMMARY:
+                try
+                {
+                    summaries.put(client.getPeer(), message.getSummary());
+                }
+                catch(IOException e)
+                {
+                    System.err.println("Error reading summary from " + client.getPeer() + ": " + e.getMessage());
+                }
+                break;
+
+            //Process replies from other servers.
+            case Message.REPLY:
+                processReply(message, false);
+                break;
+
+            //Send file to client to download once an upload slot is free.
+            case Message.FILE_REQUEST:
+            {
+                String host = client.getRemoteAddress();
+                if(!client.isBulk())
+                {
+                    client.setThrottle(uploads.throttle(host));
+                }
+                //The slot is freed once the chunk has been written, or the connection closed, whatever happens here.
+                uploads.submit(host, () ->
+                {
+                    try
+                    {
+                        if(client.isOpen())
+                        {
+                            sendFile(message.getFile(), message.getOffset(), message.getLength(), message.getCodecs(), client);
+                        }
+                    }
+                    catch(RuntimeException e)
+                    {
+                        System.err.println("Error sending file to " + host + ": " + e);
+                        client.close();
+                    }
+                    finally
+                    {
+                        client.whenWritten(() -> uploads.finished(host));
+                    }
+                });
+                break;
+            }
+
+            //Handle client search request and forward if necessary. Ignore if duplicate request.
+            case Message.SEARCH:
+            {
+                SearchId searchID = message.getSearchId();
+                int hopCount = message.getHopCount();
+
+                metrics.increment(Metrics.Counter.SEARCHES_RECEIVED);
+                if(!previousSearches.putIfAbsent(searchID, client.getPeer()))
+                {
+                    metrics.increment(Metrics.Counter.SEARCHES_DUPLICATE);
+                    return;
+                }
+                if(answer(searchID, hopCount, message.getKeyword(), localAddress(client)))
+                {
+                    break;
+                }
+                if(hopCount > 0)
+                {
+                    int forwarded = forwardRequest(searchID, message.getKeyword(), hopCount, client.getPeer());
+                    if(forwarded == 0)
+                    {
+                        metrics.increment(Metrics.Counter.SEARCHES_UNROUTED);
+                    }
+                    else
+                    {
+                        metrics.add(Metrics.Counter.SEARCHES_FORWARDED, forwarded);
+                        metrics.getForwardLatency().record(System.nanoTime() - arrival);
+                    }
+                }
+                break;
+            }
+
+            //Take the next step of a random walker, see walkStep().
+            case Message.WALK:
+                walkStep(message.getSearchId(), message.getKeyword(), message.getHopCount(), client.getPeer(),
+                        localAddress(client));
+                break;
+
+            //Answer a walker checking back. Walkers of a running search get more steps until its budget is spent.
+            case Message.WALK_CHECK:
+            {
+                Search search = searches.get(message.getSearchId());
+                if(search == null)
+                {
+                    send(client, Message.walkStatus(message.getSearchId(), 0));
+                    break;
+                }
+                boolean first = search.isFirstCheck();
+                boolean granted = search.grantSteps(WALK_CHECK_INTERVAL);
+                send(client, Message.walkStatus(message.getSearchId(), granted ? WALK_CHECK_INTERVAL : 0));
+                walkChecked(search, first);
+                break;
+            }
+
+            //Resume or drop the walker that was parked here while it checked back.
+            case Message.WALK_STATUS:
+            {
+                IntConsumer walker = pendingChecks.remove(client);
+                if(walker != null)
+                {
+                    client.closeWhenFlushed();
+                    walker.accept(message.getHopCount());
+                }
+                break;
+            }
+
+            default:
+                System.err.println("Error handling client! Unexpected message type " + message.getType());
+        }
+    }
+
+    //Forwards search request to the neighbors that may lead to a match, see routeRequest().
+    //Returns the number of neighbors it was sent to.
+    private int forwardRequest(SearchId searchID, String keyword, int hopCount, String from)
+    {
+        Message request = Message.search(searchID, hopCount - 1, keyword);
+        List<String> routed = routeRequest(keyword, hopCount, from);
+        for(String n: routed)
+        {
+            sendToNeighbor(n, request);
+        }
+        return routed.size();
+    }
+
+    //Picks the neighbors a query is forwarded to, never including the neighbor it came from.
+    //A neighbor is used if its summary says the keyword may be reachable within the query's remaining hops,
+    //or if no recent summary from it is known. When no summary matches and the query can travel beyond what
+    //the summaries cover, the query is flooded to every neighbor instead.
+    private List<String> routeRequest(String keyword, int hopCount, String from)
+    {
+        List<String> candidates = new ArrayList<>();
+        List<String> routed = new ArrayList<>();
+        long oldest = System.currentTimeMillis() - 3 * SUMMARY_INTERVAL_MS;
+        for(String n: neighbors)
+        {
+            if(n.equals(from))
+            {
+                continue;
+            }
+            candidates.add(n);
+            AttenuatedBloomFilter summary = summaries.get(n);
+            if(summary == null || summary.getCreatedAt() < oldest || summary.mightReach(keyword, hopCount))
+            {
+                routed.add(n);
+            }
+        }
+        if(routed.isEmpty() && hopCount > AttenuatedBloomFilter.DEPTH)
+        {
+            return candidates;
+        }
+        return routed;
+    }
+
+    //Sends every neighbor a summary of this node's keywords plus those reachable through its other neighbors.
+    //A neighbor's own summary is left out of what it is sent, so keywords do not echo back to where they came from.
+    void sendSummaries()
+    {
+        AttenuatedBloomFilter own = new AttenuatedBloomFilter();
+        for(String keyword: index.getKeywords())
+        {
+            own.add(0, keyword);
+        }
+        long oldest = System.currentTimeMillis() - 3 * SUMMARY_INTERVAL_MS;
+        for(String n: neighbors)
+        {
+            AttenuatedBloomFilter summary = own.copy();
+            for(Map.Entry<String, AttenuatedBloomFilter> entry: summaries.entrySet())
+            {
+                if(!entry.getKey().equals(n) && entry.getValue().getCreatedAt() >= oldest)
+                {
+                    summary.mergeFromNeighbor(entry.getValue());
+                }
+            }
+            sendToNeighbor(n, Message.summary(summary));
+        }
     }
 
-    public void addNeighbor(String neighbor)
+    //Handles a walker arriving from a neighbor. On the first visit of its search the node answers from its index,
+    //and a match ends the walker there. Otherwise the walker moves on, or checks back once its steps have run out.
+    //Revisits leave the route back to the initiator as recorded by the first visit, so replies never loop.
+    private void walkStep(SearchId searchID, String keyword, int steps, String from, String localAddress)
     {
-        neighbors.add(neighbor);
+        if(previousSearches.putIfAbsent(searchID, from) && answer(searchID, 0, keyword, localAddress))
+        {
+            return;
+        }
+        if(steps > 0)
+        {
+            forwardWalker(searchID, keyword, steps, from);
+        }
+        else
+        {
+            connectors.execute(() -> checkBack(searchID, keyword, from));
+        }
     }
 
-    //The node joins the network as a neighbor of the "host" node.
-    public void joinNetwork(String host)
+    //Moves a walker one step to a randomly chosen neighbor, with the given number of steps left including this one.
+    private void forwardWalker(SearchId searchID, String keyword, int steps, String from)
     {
-        try
-        {
-            Socket socket = new Socket(host, PORT);
-            String neighbor = socket.getInetAddress().getHostAddress();
-            addNeighbor(neighbor);
-            System.out.println("Server neighbors: " + neighbors);
-            socket.close();
-        }
-        catch(IOException e)
+        String next = pickWalkerStep(keyword, from);
+        if(next != null)
         {
-            System.err.println("Error joining network! " + e);
+            sendToNeighbor(next, Message.walk(searchID, steps - 1, keyword));
         }
     }
 
-    //Client listens for commands issued by the user until program termination.
-    public void clientLoop()
+    //Picks a random neighbor other than the one the walker came from, unless it is the only one.
+    //Neighbors whose summary may lead to the keyword are preferred when there are any.
+    private String pickWalkerStep(String keyword, String from)
     {
-        Scanner scan = new Scanner(System.in);
-        while(scan.hasNextLine())
+        List<String> candidates = new ArrayList<>();
+        List<String> hinted = new ArrayList<>();
+        long oldest = System.currentTimeMillis() - 3 * SUMMARY_INTERVAL_MS;
+        for(String n: neighbors)
         {
-            String line = scan.nextLine();
-            String[] tokens = line.split(" ");
-            if(tokens[0].equalsIgnoreCase("search"))
-            {
-                search(tokens[1], 1);
-            }
-            else if(tokens[0].equalsIgnoreCase("download"))
+            if(n.equals(from))
             {
-                download(Integer.parseInt(tokens[1]));
+                continue;
             }
-            else if(tokens[0].equalsIgnoreCase("exit"))
+            candidates.add(n);
+            AttenuatedBloomFilter summary = summaries.get(n);
+            if(summary != null && summary.getCreatedAt() >= oldest && summary.mightReach(keyword, AttenuatedBloomFilter.DEPTH))
             {
-                departNode();
-            }
-            else
-            {
-                System.out.println("Invalid command.");
+                hinted.add(n);
             }
         }
-        scan.close();
+        if(!hinted.isEmpty())
+        {
+            candidates = hinted;
+        }
+        if(candidates.isEmpty())
+        {
+            return (from != null && neighbors.contains(from)) ? from : null;
+        }
+        return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
     }
 
-    //Starts the server and listens for any incoming connections, which are handled by clientHandler().
-    public void startServer()
+    //Parks a walker whose steps have run out and asks the initiator over a direct connection whether it should go on.
+    //The walker is dropped if no answer arrives in time. Connecting blocks, so this runs on a connector thread.
+    private void checkBack(SearchId searchID, String keyword, String from)
     {
+        String initiator = searchID.getInitiator();
         try
         {
-            ServerSocket socket = new ServerSocket(PORT);
-            while(true)
+            Connection check = connect(initiator + ":" + searchID.getInitiatorPort());
+            pendingChecks.put(check, steps ->
             {
-                Socket client = socket.accept();
-                if(!neighbors.contains(client.getInetAddress().getHostAddress()))
+                if(steps > 0)
                 {
-                    addNeighbor(client.getInetAddress().getHostAddress());
-                    System.out.println("Server neighbors: " + neighbors);
+                    forwardWalker(searchID, keyword, steps, from);
                 }
-                else
+            });
+            send(check, Message.walkCheck(searchID));
+            scheduler.schedule(() ->
+            {
+                if(pendingChecks.remove(check) != null)
                 {
-                    clientHandler(client);
+                    check.close();
                 }
-                client.close();
-            }
+            }, WALK_CHECK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         }
         catch(IOException e)
         {
-            System.err.println("Error starting server! " + e);
-            e.printStackTrace();
+            System.err.println("Error checking back with " + initiator + ": " + e.getMessage());
         }
     }
 
-    //Handles all requests that a client can make. Additionally, handles replies received from other servers.
-    public void clientHandler(Socket client)
+    //Replies to a search from the local index, or failing that from hits cached while relaying earlier replies.
+    //Returns false if neither has a match and the search must go on.
+    private boolean answer(SearchId searchID, int hopCount, String keyword, String localAddress)
     {
-        try
+        List<String> matches = localSearch(keyword);
+        if(!matches.isEmpty())
         {
-            InputStream in = client.getInputStream();
-            BufferedReader read = new BufferedReader(new InputStreamReader(in));
-            String line;
-            while((line = read.readLine()) != null) //Reads in requests.
+            for(String fileKeyword: matches)
             {
-                String[] tokens = line.split("\t");
+                replyWithFile(searchID, hopCount, fileKeyword, localAddress);
+            }
+            metrics.increment(Metrics.Counter.SEARCHES_ANSWERED);
+            return true;
+        }
+        List<QueryHitCache.Hit> cached = hitCache.get(keyword);
+        if(cached.isEmpty())
+        {
+            return false;
+        }
+        for(QueryHitCache.Hit hit: cached)
+        {
+            deliverReply(Message.reply(searchID, hopCount, hit.getFileKeyword(), hit.getLocation(), hit.getManifest()));
+        }
+        metrics.increment(Metrics.Counter.SEARCHES_ANSWERED);
+        return true;
+    }
 
-                //Handle node departures.
-                if(tokens[0].equals("leaving"))
-                {
-                    if(tokens.length > 1)
-                    {
-                        String[] leavingNodeNeighbors = tokens[1].split(" ");
-                        neighbors.addAll(Arrays.asList(leavingNodeNeighbors));
-                    }
-                    neighbors.remove(client.getInetAddress().getHostAddress());
-                    System.out.println("Server neighbors: " + neighbors);
-                }
+    //Searches for the file locally using the in-memory keyword index. Returns every matching line.
+    private List<String> localSearch(String keyword)
+    {
+        long start = System.nanoTime();
+        List<String> matches = index.search(keyword);
+        metrics.getLocalSearchTime().record(System.nanoTime() - start);
+        return matches;
+    }
 
-                //Process replies from other servers.
-                else if(tokens.length == 3)
-                {
-                    processReply(tokens[0], tokens[1], tokens[2]);
-                }
+    //Client initiates an expanding-ring search starting at hop count 1 and doubling up to hop count 16.
+    //Each ring waits only as long as the measured per-hop round-trip time suggests replies need, and the
+    //search stops as soon as enough replies have arrived. Searches are independent, so several may run at once;
+    //the console's download command refers to the most recently started one.
+    Search search(String keyword, int repliesWanted)
+    {
+        Search search = new Search(keyword, Math.max(1, repliesWanted));
+        metrics.increment(Metrics.Counter.SEARCHES_STARTED);
+        startRing(search, 1);
+        return search;
+    }
 
-                //Send file to client to download.
-                else if(tokens.length == 1)
-                {
-                    sendFile(new File("/home/013/a/ax/axz210027/" + homeDirectory + "/" + tokens[0]), client);
-                }
+    //Client initiates a random-walk search: the given number of walkers each step to one random neighbor at a time
+    //and check back with this node every few steps, stopping once enough replies have arrived or the walk's step
+    //budget is spent. This sends far fewer messages than flooding, at the cost of taking longer to find rare files.
+    Search walk(String keyword, int repliesWanted, int walkers)
+    {
+        Search search = new Search(keyword, Math.max(1, repliesWanted));
+        walkers = Math.max(1, walkers);
+        SearchId searchID = SearchId.create(config.getAdvertisedAddress(), config.getPort());
+        previousSearches.putIfAbsent(searchID, config.getAddress());
+        search.startWalk(walkers, WALK_CHECK_INTERVAL, walkers * MAX_WALK_STEPS);
+        searches.putIfAbsent(searchID, search);
+        metrics.increment(Metrics.Counter.SEARCHES_STARTED);
+        if(neighbors.isEmpty())
+        {
+            System.out.println("Search terminated with no neighbors to walk to.");
+            search.finish();
+            return search;
+        }
+        for(int i = 0; i < walkers; i++)
+        {
+            forwardWalker(searchID, keyword, WALK_CHECK_INTERVAL, null);
+        }
+        search.setTimeout(scheduler.schedule(() -> walkTimedOut(search), getWalkTimeout(), TimeUnit.MILLISECONDS));
+        return search;
+    }
 
-                //Handle client search request and forward if necessary. Ignore if duplicate request.
-                else
-                {
-                    int hopCount = Integer.parseInt(tokens[1]);
+    //How long a walker granted steps may take before it checks back again: WALK_CHECK_INTERVAL steps, each half a
+    //hop round trip, then a round trip to connect back and half of one to send the check, with the usual margin.
+    private long getWalkTimeout()
+    {
+        return hopRtt.getRingTimeout(WALK_CHECK_INTERVAL);
+    }
 
-                    if(previousSearches.containsKey(tokens[0]))
-                    {
-                        return;
-                    }
-                    previousSearches.put(tokens[0], client.getInetAddress().getHostAddress());
-                    scheduler.schedule(() ->
-                    {
-                        previousSearches.remove(tokens[0]);
-                    }, MAX_HOP_COUNT, TimeUnit.SECONDS);
-                    String fileKeyword = localSearch(tokens[0]);
-                    if(!fileKeyword.equals("File not found."))
-                    {
-                        sendReply(tokens[0], fileKeyword, client.getLocalAddress().getHostAddress());
-                    }
-                    else if(hopCount > 0)
-                    {
-                        forwardRequest(tokens[0], hopCount);
-                    }
-                }
-            }
+    //Keeps a walk going for as long as walkers check back. Once the budget is spent and the last walker has been
+    //refused the walk ends right away; walkers that stopped at a match or lost their way never check back, so
+    //otherwise it ends when none has checked back for a whole check interval. The first check also measures how
+    //long a hop takes, since walks get no per-hop round trip from their replies.
+    private void walkChecked(Search search, boolean first)
+    {
+        if(first)
+        {
+            hopRtt.addSample(System.currentTimeMillis() - search.getStartTime(), (WALK_CHECK_INTERVAL + 3) / 2.0);
         }
-        catch(IOException e)
+        if(search.isWalkOver())
         {
-            System.err.println("Error handling client! " + e);
-            e.printStackTrace();
+            search.finish();
+            return;
+        }
+        if(!search.isFinished())
+        {
+            search.setTimeout(scheduler.schedule(() -> walkTimedOut(search), getWalkTimeout(), TimeUnit.MILLISECONDS));
         }
     }
 
-    //Forwards search request to all neighbors.
-    private void forwardRequest(String searchID, int hopCount)
+    //Client looks up an exact file name or keyword in the DHT, which asks O(log n) nodes instead of flooding.
+    //Runs in the background like the other searches and displays the files found.
+    Search lookup(String name)
     {
-        for(String n: neighbors)
+        Search search = new Search(name, 1);
+        metrics.increment(Metrics.Counter.SEARCHES_STARTED);
+        if(dht == null)
+        {
+            System.out.println("Lookups need the DHT, which is not enabled on this node.");
+            search.finish();
+            return search;
+        }
+        connectors.execute(() ->
         {
             try
             {
-                Socket socket = new Socket(n, PORT);
-                PrintWriter pout = new PrintWriter(socket.getOutputStream(), true);
-                pout.println(searchID + "\t" + (hopCount - 1));
-                socket.close();
+                for(Dht.Record record: dht.findValue(name))
+                {
+                    search.addReply(new Reply(record.getFileKeyword(), record.getLocation(),
+                            System.currentTimeMillis() - search.getStartTime(), record.getManifest()));
+                }
             }
-            catch (IOException e)
+            catch(RuntimeException e)
             {
-                System.err.println("Error forwarding request: " + e.getMessage());
+                System.err.println("Error looking up " + name + ": " + e);
             }
+            finally
+            {
+                search.finish();
+            }
+        });
+        return search;
+    }
+
+    //Publishes every catalog line in the DHT under its file name and each of its keywords. Runs when the node
+    //first joins and then periodically, which renews the records before they expire and picks up catalog changes.
+    //Republishing also moves records published while the DHT was small to the nodes now closest to their keys.
+    //A large catalog can take longer to publish than the interval, so a run due while one is going on is skipped.
+    void publishCatalog()
+    {
+        if(!publishing.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            publishLines();
+        }
+        finally
+        {
+            publishing.set(false);
         }
     }
 
-    //Searches for the file locally by checking availableFiles.txt.
-    private String localSearch(String searchIdentifier) throws IOException
+    private void publishLines()
     {
-        String[] tokens = searchIdentifier.split(" ");
-        String keyword = tokens[1];
-        File checkFile = new File("/home/013/a/ax/axz210027/" + homeDirectory + "/availableFiles.txt");
-        Scanner scan = new Scanner(checkFile);
-        while(scan.hasNextLine())
+        dht.expire();
+        for(String line: index.getLines())
         {
-            String line = scan.nextLine();
             String[] elements = line.split("\\s+");
-            for(String s: elements)
+            FileManifest manifest;
+            try
+            {
+                manifest = store.manifest(elements[0]);
+            }
+            catch(IOException e)
             {
-                if(s.equalsIgnoreCase(keyword))
+                System.err.println("Error reading shared file " + elements[0] + ": " + e.getMessage());
+                continue;
+            }
+            if(!WireCodec.fits(Message.dhtStore(elements[0], line, config.getAddress(), manifest, config.getAddress())))
+            {
+                System.err.println("Error publishing " + elements[0] + ": its manifest is too large to send");
+                continue;
+            }
+            Set<String> names = new HashSet<>();
+            for(String element: elements)
+            {
+                if(names.add(element.toLowerCase(Locale.ROOT)))
                 {
-                    return line;
+                    dht.publish(element, line, config.getAddress(), manifest);
                 }
             }
         }
-        return "File not found.";
     }
 
-    //Client initiates search request starting at hop count 1 all the way to hop count 16.
-    private void search(String keyword, int hopCount)
+    //Sends a DHT request over a connection of its own and waits for the response, which ends with DHT_NODES.
+    private List<Message> dhtCall(String address, Message request) throws IOException
+    {
+        Connection connection = connect(address);
+        List<Message> response = new ArrayList<>();
+        CompletableFuture<List<Message>> done = new CompletableFuture<>();
+        pendingCalls.put(connection, message ->
+        {
+            response.add(message);
+            if(message.getType() == Message.DHT_NODES)
+            {
+                done.complete(response);
+            }
+        });
+        try
+        {
+            send(connection, request);
+            return done.get(DHT_CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new IOException("no answer from " + address + " within " + DHT_CALL_TIMEOUT_MS + "ms");
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + address);
+        }
+        catch(ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            pendingCalls.remove(connection);
+            connection.close();
+        }
+    }
+
+    //Ends a walk none of whose walkers checked back in time with whatever replies did arrive.
+    private void walkTimedOut(Search search)
+    {
+        search.finish();
+    }
+
+    //Sends one ring of the search under a fresh search ID and schedules its timeout.
+    //A ring the summaries route to no neighbor has nothing to wait for, so the next ring starts straight away.
+    private void startRing(Search search, int hopCount)
     {
         if(hopCount > MAX_HOP_COUNT)
         {
-            System.out.println("Search terminated at hop count 16 with no results found.");
+            search.finish();
             return;
         }
-        while(!receivedReplies.isEmpty())
+        SearchId searchID = SearchId.create(config.getAdvertisedAddress(), config.getPort());
+        previousSearches.putIfAbsent(searchID, config.getAddress());
+        if(!search.startRing(searchID, hopCount))
         {
-            receivedReplies.remove(0);
+            return;
         }
-        searchStartTime = System.currentTimeMillis();
-        try
+        searches.putIfAbsent(searchID, search);
+        if(forwardRequest(searchID, search.getKeyword(), hopCount, null) == 0)
         {
-            if(!searches.containsKey(keyword))
-            {
-                searches.put(keyword, 0);
-            }
-            else
-            {
-                searches.put(keyword, searches.get(keyword) + 1);
-            }
-            String searchID = InetAddress.getLocalHost().getHostAddress() + " " + keyword + " " + searches.get(keyword);
-            previousSearches.put(searchID, InetAddress.getLocalHost().getHostAddress());
-            forwardRequest(searchID, hopCount);
+            startRing(search, hopCount * 2);
+            return;
+        }
+        metrics.increment(Metrics.Counter.RINGS_STARTED);
+        search.setTimeout(scheduler.schedule(() -> ringTimedOut(search, hopCount),
+                hopRtt.getRingTimeout(hopCount), TimeUnit.MILLISECONDS));
+    }
 
-            //Wait hop count seconds for all replies to arrive.
-            //Then display replies or start a new search with increased hop count.
-            scheduler.schedule(() ->
-            {
-                if (!receivedReplies.isEmpty())
-                {
-                    System.out.println("File found at hop count: " + hopCount);
-                    displayReplies();
-                }
-                else
-                {
-                    System.out.println("Search timed out at hop count " + hopCount + ". Retrying.");
-                    search(keyword, hopCount * 2);
-                }
-            }, hopCount, TimeUnit.SECONDS);
+    //Finish the search if any replies arrived during the ring, otherwise start a new ring with double the hop count.
+    private void ringTimedOut(Search search, int hopCount)
+    {
+        if(search.isFinished() || search.getHopCount() != hopCount)
+        {
+            return;
         }
-        catch (IOException e)
+        if(search.getReplyCount() > 0)
         {
-            System.err.println("Error starting search: " + e.getMessage());
+            search.finish();
+        }
+        else
+        {
+            System.out.println("Search timed out at hop count " + hopCount + ". Retrying.");
+            startRing(search, hopCount * 2);
         }
     }
 
     //Determine what to do with received reply. If initiator, consume it.
-    //Otherwise, forward to first node that sent the corresponding search request.
-    private void processReply(String searchID, String fileKeyword, String location)
+    //Otherwise, remember the hit for later searches and forward to first node that sent the corresponding search request.
+    //A direct reply came back in one hop rather than along the path, so its round trip covers (d + 1) / 2 hop round
+    //trips for a responder d hops away rather than d.
+    private void processReply(Message reply, boolean direct)
     {
-        try
+        if(isInitiator(reply.getSearchId()))
         {
-            String initiator = searchID.split(" ")[0];
-            if(InetAddress.getLocalHost().getHostAddress().equals(initiator))
+            SearchId searchID = reply.getSearchId();
+            Search search = searches.get(searchID);
+            if(search == null)
             {
-                long timeElapsed = System.currentTimeMillis() - searchStartTime;
-                receivedReplies.add(fileKeyword + " " + location + "  " + timeElapsed + "ms");
+                return;
             }
-            else
+            if(!search.isWalk())
+            {
+                int distance = search.getDistance(searchID, reply.getHopCount());
+                hopRtt.addSample(search.getRoundTrip(searchID), direct ? (distance + 1) / 2.0 : distance);
+            }
+            long timeElapsed = System.currentTimeMillis() - search.getStartTime();
+            Reply received = new Reply(reply.getFileKeyword(), reply.getLocation(), timeElapsed, reply.getManifest());
+            if(search.addReply(received))
             {
-                sendReply(searchID, fileKeyword, location);
+                search.finish();
             }
         }
-        catch (IOException e)
+        else
         {
-            System.err.println("Error starting search: " + e.getMessage());
+            hitCache.add(reply.getFileKeyword(), reply.getLocation(), reply.getManifest());
+            metrics.increment(Metrics.Counter.REPLIES_RELAYED);
+            sendReply(reply);
         }
     }
 
-    //Sends reply to first node that sent the corresponding search request.
-    private void sendReply(String searchID, String fileKeyword, String location)
+    //True if this node started the search with the given ID.
+    private boolean isInitiator(SearchId searchID)
+    {
+        return searchID.getInitiatorPort() == config.getPort()
+                && searchID.getInitiator().equals(config.getAdvertisedAddress().getHostAddress());
+    }
+
+    //Answers a search with a locally shared file, advertising its size and chunk hashes.
+    private void replyWithFile(SearchId searchID, int hopCount, String fileKeyword, String location)
     {
+        String file = fileKeyword.split("\\s+")[0];
         try
         {
-            Socket socket = new Socket(previousSearches.get(searchID), PORT);
-            PrintWriter pout = new PrintWriter(socket.getOutputStream(), true);
-            pout.println(searchID + "\t" + fileKeyword + "\t" + location);
-            socket.close();
+            deliverReply(Message.reply(searchID, hopCount, fileKeyword, location, store.manifest(file)));
         }
-        catch (IOException e)
+        catch(IOException e)
         {
-            System.err.println("Error starting search: " + e.getMessage());
+            System.err.println("Error reading shared file " + file + ": " + e.getMessage());
         }
     }
 
-    //Displays all received replies.
-    public void displayReplies()
+    //Sends a reply this node answered a search with. With direct replies on, the reply goes to the initiator in a
+    //datagram, and is sent along the search path only if the initiator does not acknowledge it in time, so it no longer
+    //waits on every node in between. Replies too large for one unfragmented datagram take the path straight away,
+    //and those too large for any frame, with the manifest of a huge file, are not sent at all.
+    private void deliverReply(Message reply)
     {
-        System.out.print("\n" + receivedReplies.size());
-        if(receivedReplies.size() == 1)
+        if(!WireCodec.fits(reply))
         {
-            System.out.println(" reply was received.");
+            System.err.println("Error replying with " + reply.getFile() + ": its manifest is too large to send");
+            return;
         }
-        else
+        ByteBuffer frame;
+        if(!config.isSendingDirectReplies() || datagrams == null
+                || (frame = WireCodec.encode(reply)).remaining() > MAX_DATAGRAM_SIZE)
+        {
+            sendReply(reply);
+            return;
+        }
+        String key = replyKey(reply);
+        ScheduledFuture<?> fallback = scheduler.schedule(() ->
+        {
+            if(unacknowledgedReplies.remove(key) != null)
+            {
+                metrics.increment(Metrics.Counter.REPLIES_DIRECT_FALLBACK);
+                workers.execute(() -> sendReply(reply));
+            }
+        }, DIRECT_REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        unacknowledgedReplies.put(key, fallback);
+        SearchId searchID = reply.getSearchId();
+        if(sendDatagram(frame, Message.REPLY, new InetSocketAddress(searchID.getInitiator(), searchID.getInitiatorPort())))
+        {
+            metrics.increment(Metrics.Counter.REPLIES_DIRECT);
+        }
+        else if(unacknowledgedReplies.remove(key) != null)
         {
-            System.out.println(" replies were received.");
+            fallback.cancel(false);
+            sendReply(reply);
         }
-        int i = 1;
-        for(String reply: receivedReplies)
+    }
+
+    //Identifies a direct reply and its acknowledgement.
+    private static String replyKey(Message message)
+    {
+        return message.getSearchId() + " " + message.getFileKeyword() + " " + message.getLocation();
+    }
+
+    //Sends reply to first node that sent the corresponding search request.
+    private void sendReply(Message reply)
+    {
+        String previousHop = previousSearches.get(reply.getSearchId());
+        if(previousHop == null)
         {
-            System.out.println(i++ + ": " + reply);
+            System.err.println("Error sending reply: no route back for " + reply.getSearchId());
+            return;
         }
-        System.out.println("Which reply would you like to choose to download? Please enter the command download <replyNum>");
+        sendToNeighbor(previousHop, reply);
+    }
+
+    //Downloads the file listed in the selected reply. Chunks are fetched in parallel from every node
+    //that replied with the same file and content, and each chunk is verified against the advertised hashes.
+    //Returns true once the whole file is in the home directory and shared from there.
+    boolean download(Reply selected, List<Reply> receivedReplies)
+    {
+        return download(selected, receivedReplies, (completed, total) -> { });
     }
 
-    //Downloads the file from the server listed in the selected reply.
-    private void download(int replyNum)
+    //Downloads as above and passes the number of chunks completed and the total to the listener after each chunk.
+    boolean download(Reply selected, List<Reply> receivedReplies, BiConsumer<Integer, Integer> listener)
     {
-        if(replyNum > receivedReplies.size() || receivedReplies.size() == 0)
+        Path target;
+        try
+        {
+            target = inHome(selected.getFile());
+        }
+        catch(IOException e)
         {
-            System.out.println("Cannot download file. No such reply has been received.");
+            System.err.println("Error downloading file: " + e.getMessage());
+            return false;
         }
-        else if(new File("/home/013/a/ax/axz210027/" + homeDirectory + "/" + receivedReplies.get(replyNum - 1).split(" ")[0]).isFile())
+        if(Files.isRegularFile(target))
         {
             System.out.println("Cannot download file. You already have this file.");
         }
-        else
+        else if(!store.getNames(selected.getManifest()).isEmpty())
         {
+            //The same content is already shared under another name, so copy it instead of downloading it.
+            Path copy = home.resolve(store.getNames(selected.getManifest()).get(0));
             try
             {
-                String[] tokens = receivedReplies.get(replyNum - 1).split("\\s+");
-                Socket socket = new Socket(tokens[2], PORT);
-                System.out.println("You selected reply " + replyNum + ": " + receivedReplies.get(replyNum - 1));
-                PrintWriter pout = new PrintWriter(socket.getOutputStream(), true);
-                pout.println(tokens[0]);
-                InputStream in = socket.getInputStream();
-                BufferedReader read = new BufferedReader(new InputStreamReader(in));
-                PrintWriter writeFile = new PrintWriter("/home/013/a/ax/axz210027/" + homeDirectory + "/" + tokens[0]);
-                String line;
-                while((line = read.readLine()) != null)
-                {
-                    if (line.equals("END_OF_FILE"))
-                    {
-                        break;
-                    }
-                    writeFile.println(line);
+                Files.copy(copy, target);
+                System.out.println("Copied " + selected.getFile() + " from " + copy.getFileName() + ", which has the same content.");
+                makeAvailable(selected.getFile(), selected.getKeywords(), selected.getManifest());
+                return true;
+            }
+            catch(IOException e)
+            {
+                System.err.println("Error copying file: " + e.getMessage());
+            }
+        }
+        else
+        {
+            Path partial = Paths.get(target + ".part");
+            Path sidecar = Paths.get(target + ".progress");
+            List<String> peers = new ArrayList<>();
+            for(Reply reply: receivedReplies)
+            {
+                if(reply.sameContent(selected) && !peers.contains(reply.getLocation()))
+                {
+                    peers.add(reply.getLocation());
+                }
+            }
+            long startTime = System.currentTimeMillis();
+            boolean complete = false;
+            try(DownloadProgress progress = DownloadProgress.open(sidecar, selected.getManifest()))
+            {
+                //Chunks are only trusted if the sidecar recorded them and they still match their hash, since neither
+                //file is forced to disk, so a partial file without any starts over.
+                int damaged = progress.verify(partial, selected.getManifest());
+                if(damaged > 0)
+                {
+                    System.out.println(damaged + " chunk(s) of " + selected.getFile() + " did not survive and are fetched again.");
+                }
+                if(progress.getCompletedCount() == 0)
+                {
+                    Files.deleteIfExists(partial);
+                }
+                else
+                {
+                    System.out.println("Resuming " + selected.getFile() + ": " + progress.getCompletedCount() + " of "
+                            + progress.getChunkCount() + " chunks already downloaded.");
+                }
+                System.out.println("Downloading " + selected.getFile() + " from " + peers.size() + " node(s).");
+                SwarmDownload swarm = new SwarmDownload(selected.getFile(), selected.getManifest(), peers, partial, progress, listener);
+                complete = swarm.run();
+                metrics.add(Metrics.Counter.BYTES_DOWNLOADED, swarm.getBytesReceived());
+                if(complete)
+                {
+                    long timeElapsed = System.currentTimeMillis() - startTime;
+                    System.out.println("Downloaded " + selected.getManifest().getSize() + " bytes in " + timeElapsed
+                            + "ms. Chunks per node: " + swarm.getChunksPerPeer());
+                }
+                else
+                {
+                    System.out.println("Download interrupted with " + progress.getCompletedCount() + " of "
+                            + progress.getChunkCount() + " chunks. Search again and download to resume.");
                 }
-                makeAvailable(tokens[0], tokens[1]);
-                read.close();
-                pout.close();
-                writeFile.close();
-                socket.close();
             }
             catch(IOException e)
             {
                 System.err.println("Error downloading file: " + e.getMessage());
             }
+            if(complete)
+            {
+                try
+                {
+                    Files.move(partial, target);
+                    Files.deleteIfExists(sidecar);
+                    makeAvailable(selected.getFile(), selected.getKeywords(), selected.getManifest());
+                    return true;
+                }
+                catch(IOException e)
+                {
+                    System.err.println("Error downloading file: " + e.getMessage());
+                }
+            }
         }
+        return false;
     }
 
-    //Server sends file to the client.
-    private void sendFile(File file, Socket client)
+    //Server sends the requested byte range of the file, preceded by its length, or -1 if it cannot be sent.
+    //The bytes are sent by the selector thread with FileChannel.transferTo, so the file is never loaded onto the heap.
+    //If the client accepts compression, the length is followed by the codec chosen for the file, and a compressed
+    //range is built on this worker thread instead.
+    private void sendFile(String name, long offset, long length, int codecs, Connection client)
     {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        FileChannel channel = null;
         try
         {
-            PrintWriter pout = new PrintWriter(client.getOutputStream(), true);
-            List<String> lines = Files.readAllLines(file.toPath());
-            for(String line: lines)
+            Path file = inHome(name);
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            long size = channel.size();
+            if(offset < 0 || offset > size)
+            {
+                throw new IOException("Range starting at " + offset + " is outside " + file);
+            }
+            long count = (length < 0) ? size - offset : Math.min(length, size - offset);
+            int codec = BlockCompression.choose(codecs, file.getFileName().toString());
+            if(codec != BlockCompression.NONE)
             {
-                pout.println(line);
+                //Compressed ranges are built on the heap, so a longer request gets its first MAX_RANGE bytes.
+                count = Math.min(count, BlockCompression.MAX_RANGE);
+                ByteBuffer response = BlockCompression.compress(channel, offset, count);
+                channel.close();
+                metrics.add(Metrics.Counter.BYTES_UPLOADED, response.remaining());
+                client.write(response);
+                return;
             }
-            pout.println("END_OF_FILE");
-            pout.flush();
+            header.putLong(count).flip();
+            client.write(header);
+            if(codecs != 0)
+            {
+                client.write(ByteBuffer.wrap(new byte[] {(byte) BlockCompression.NONE}));
+            }
+            client.transfer(channel, offset, count);
+            metrics.add(Metrics.Counter.BYTES_UPLOADED, count);
         }
-        catch (IOException e)
+        catch(IOException | RuntimeException e)
         {
             System.err.println("Error sending file: " + e.getMessage());
+            if(channel != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch(IOException closeError)
+                {
+                    System.err.println("Error closing file: " + closeError.getMessage());
+                }
+            }
+            header.clear();
+            header.putLong(-1).flip();
+            client.write(header);
+        }
+    }
+
+    //Resolves a file name from another node against the home directory. Names that are absolute or climb out of it
+    //with ".." are refused, so other nodes can neither read nor write files outside the home directory.
+    private Path inHome(String name) throws IOException
+    {
+        Path base = home.normalize();
+        Path file = base.resolve(name).normalize();
+        if(!file.startsWith(base) || file.equals(base))
+        {
+            throw new IOException(name + " is not a file in the home directory");
         }
+        return file;
+    }
+
+    //Hashes the shared files the content store does not know yet, or that changed since it last saw them, so that
+    //replies do not wait for the hashing. This is how an imported catalog gets into the store; on later startups the
+    //store already has every file and this finds nothing to do.
+    private void hashCatalog()
+    {
+        index.share(new ArrayList<>(index.getFiles()));
     }
 
-    //Adds the file to availableFiles.txt.
-    private void makeAvailable(String file, String keyword) throws IOException
+    //Adds the file with its verified manifest to the content store, which persists its keywords, and to the keyword index.
+    private void makeAvailable(String file, String keyword, FileManifest manifest) throws IOException
     {
-        FileWriter writeFile = new FileWriter("/home/013/a/ax/axz210027/" + homeDirectory + "/availableFiles.txt", true);
-        PrintWriter pout = new PrintWriter(writeFile);
-        pout.println(file + " " + keyword);
-        pout.close();
+        try
+        {
+            store.put(file, keyword, manifest);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IOException(e.getMessage());
+        }
+        index.add(file + " " + keyword);
     }
 
     //Node leaves the P2P network. Must inform neighbors so that it is removed from their adjacency lists.
-    private void departNode()
+    //One of them is handed this node's neighbors so the network stays connected. Returns once the departure
+    //messages are sent, or after DEPART_TIMEOUT_MS. The node no longer heartbeats or reconnects to anyone.
+    public void leave()
     {
-        int selectedNeighbor = (int) (Math.random() * neighbors.size());
-        for(int i = 0; i < neighbors.size(); i++)
+        List<String> departing = new ArrayList<>(neighbors);
+        neighbors.clear();
+        reconnectAttempts.clear();
+        for(String neighbor: departing)
+        {
+            failureDetector.unwatch(neighbor);
+        }
+        int selectedNeighbor = (int) (Math.random() * departing.size());
+        List<Connection> closing = new ArrayList<>();
+        for(int i = 0; i < departing.size(); i++)
         {
             try
             {
-                Socket socket = new Socket(neighbors.get(i), PORT);
-                PrintWriter pout = new PrintWriter(socket.getOutputStream(), true);
-                if(i != selectedNeighbor || neighbors.size() == 1)
+                Connection link = getLink(departing.get(i));
+                if(i != selectedNeighbor || departing.size() == 1)
                 {
-                    pout.println("leaving");
+                    send(link, Message.leaving(Collections.emptyList()));
                 }
                 else
                 {
-                    String allNeighbors = "";
-                    for(String n: neighbors)
-                    {
-                        allNeighbors = allNeighbors.concat(n + " ");
-                    }
-                    pout.println("leaving\t" + allNeighbors);
+                    send(link, Message.leaving(departing));
                 }
-                socket.close();
+                link.closeWhenFlushed();
+                closing.add(link);
             }
             catch (IOException e)
             {
                 System.err.println("Error forwarding request: " + e.getMessage());
             }
         }
-        System.out.println("Exiting the P2P system.\n\n");
-        System.exit(0);
+
+        //Give the selector a moment to flush the departure messages.
+        for(Connection link: closing)
+        {
+            link.awaitClosed(DEPART_TIMEOUT_MS);
+        }
     }
 }
@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+//Non-blocking API for driving a node from code instead of the console. Every call returns at once. Searches
+//return their Search, whose listeners receive each reply as it arrives and whose result completes when it ends.
+//Joining, leaving and downloading return futures. Blocking work such as connecting and transferring runs on the
+//client's own threads, so callers may start any number of operations without waiting for earlier ones.
+//The console is built on this class.
+public class NodeClient
+{
+    //Instance variables and constants.
+    private final Node node;
+    private final ExecutorService executor;
+
+    public NodeClient(Node node)
+    {
+        this.node = node;
+        this.executor = Executors.newCachedThreadPool(task ->
+        {
+            Thread thread = new Thread(task, "node-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Node getNode()
+    {
+        return node;
+    }
+
+    //Completes once the node is linked to the "host[:port]" node as a neighbor.
+    public CompletableFuture<Void> join(String host)
+    {
+        return CompletableFuture.runAsync(() ->
+        {
+            try
+            {
+                node.join(host);
+            }
+            catch(IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    //Completes once the neighbors have been told that the node is leaving.
+    public CompletableFuture<Void> leave()
+    {
+        return CompletableFuture.runAsync(node::leave, executor);
+    }
+
+    //Expanding-ring search until the given number of replies has arrived.
+    public Search search(String keyword, int repliesWanted)
+    {
+        return node.search(keyword, repliesWanted);
+    }
+
+    //Random-walk search with the given number of walkers.
+    public Search walk(String keyword, int repliesWanted, int walkers)
+    {
+        return node.walk(keyword, repliesWanted, walkers);
+    }
+
+    //Exact lookup of a file name or keyword in the DHT.
+    public Search lookup(String name)
+    {
+        return node.lookup(name);
+    }
+
+    //Downloads the selected reply's file from every node among the replies that has the same content.
+    //The listener is given the number of chunks completed and the total as the download progresses. Completes
+    //with the downloaded file's path, or exceptionally if the download did not complete.
+    public CompletableFuture<Path> download(Reply selected, List<Reply> replies, BiConsumer<Integer, Integer> listener)
+    {
+        return CompletableFuture.supplyAsync(() ->
+        {
+            if(!node.download(selected, replies, listener))
+            {
+                throw new UncheckedIOException(new IOException("Download of " + selected.getFile() + " did not complete"));
+            }
+            return node.getHome().resolve(selected.getFile());
+        }, executor);
+    }
+
+    public CompletableFuture<Path> download(Reply selected, List<Reply> replies)
+    {
+        return download(selected, replies, (completed, total) -> { });
+    }
+}
@@ -0,0 +1,240 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+//Settings of one node: the port it listens on, the address it binds to and advertises to other nodes,
+//and the base directory holding every node's home directory. Nodes are identified by "<address>:<port>",
+//so several nodes can share a host as long as their ports differ.
+public final class NodeConfig
+{
+    //Class constants.
+    public final static int DEFAULT_PORT = 5000;
+    public final static String DEFAULT_BASE_DIRECTORY = "/home/013/a/ax/axz210027/";
+    public final static int NO_METRICS_PORT = -1;
+    public final static int DEFAULT_UPLOAD_SLOTS = 4;
+
+    //Instance variables and constants.
+    private final int port;
+    private final Path baseDirectory;
+    private final InetAddress bindAddress;
+    private final InetAddress advertisedAddress;
+    private final boolean watchingCatalog;
+    private final int metricsPort;
+    private final boolean virtualThreads;
+    private final boolean dht;
+    private final int uploadSlots;
+    private final long uploadRate;
+    private final long hostUploadRate;
+    private final boolean directReplies;
+
+    public NodeConfig(int port, Path baseDirectory, InetAddress bindAddress, InetAddress advertisedAddress,
+                      boolean watchingCatalog, int metricsPort,
+                      boolean virtualThreads, boolean dht, int uploadSlots, long uploadRate, long hostUploadRate,
+                      boolean directReplies)
+    {
+        this.port = port;
+        this.baseDirectory = baseDirectory;
+        this.bindAddress = bindAddress;
+        this.advertisedAddress = advertisedAddress;
+        this.watchingCatalog = watchingCatalog;
+        this.metricsPort = metricsPort;
+        this.virtualThreads = virtualThreads;
+        this.dht = dht;
+        this.uploadSlots = uploadSlots;
+        this.uploadRate = uploadRate;
+        this.hostUploadRate = hostUploadRate;
+        this.directReplies = directReplies;
+    }
+
+    //The original setup: port 5000 on all interfaces, advertised under this host's address.
+    public static NodeConfig defaults()
+    {
+        InetAddress advertised;
+        try
+        {
+            advertised = InetAddress.getLocalHost();
+        }
+        catch(UnknownHostException e)
+        {
+            System.err.println("Error resolving local host, advertising loopback: " + e.getMessage());
+            advertised = InetAddress.getLoopbackAddress();
+        }
+        return new NodeConfig(DEFAULT_PORT, Paths.get(DEFAULT_BASE_DIRECTORY), null, advertised, true, NO_METRICS_PORT, false, false,
+                DEFAULT_UPLOAD_SLOTS, TokenBucket.UNLIMITED, TokenBucket.UNLIMITED, false);
+    }
+
+    public NodeConfig withPort(int port)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    public NodeConfig withBaseDirectory(Path baseDirectory)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    //Listens on the given address only, and advertises it too unless it is the wildcard address.
+    public NodeConfig withBindAddress(InetAddress bindAddress)
+    {
+        InetAddress advertised = (bindAddress == null || bindAddress.isAnyLocalAddress()) ? advertisedAddress : bindAddress;
+        return new NodeConfig(port, baseDirectory, bindAddress, advertised, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    public NodeConfig withAdvertisedAddress(InetAddress advertisedAddress)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    //Whether the node watches its home directory for catalog changes. Each watcher holds an inotify instance,
+    //which are scarce, so simulations running many nodes in one process turn it off.
+    public NodeConfig withCatalogWatching(boolean watchingCatalog)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    //Serves Prometheus metrics on this loopback port. NO_METRICS_PORT turns the endpoint off.
+    public NodeConfig withMetricsPort(int metricsPort)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    //Runs message handling and neighbor connects on virtual threads, one per task, when the JDK has them (21+).
+    //Older JDKs fall back to platform threads.
+    public NodeConfig withVirtualThreads(boolean virtualThreads)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    //Joins the Kademlia DHT as well, publishing the catalog into it and answering its requests, which enables
+    //exact lookups by file name or keyword. Keyword searches through the neighbors work either way.
+    public NodeConfig withDht(boolean dht)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    //Sends at most the given number of file chunks at once and caps upload bandwidth, in bytes per second, for the
+    //node as a whole and for each downloading host. TokenBucket.UNLIMITED leaves a rate uncapped. A node rate a
+    //little below the uplink keeps search traffic fast while the node serves downloads.
+    public NodeConfig withUploadLimits(int uploadSlots, long uploadRate, long hostUploadRate)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    //Sends replies to searches straight to the node that started them, in a UDP datagram to the port it listens on,
+    //instead of back along the path the search took. A reply the initiator does not acknowledge within a moment is
+    //sent along the path after all, so replies still arrive where UDP is blocked.
+    public NodeConfig withDirectReplies(boolean directReplies)
+    {
+        return new NodeConfig(port, baseDirectory, bindAddress, advertisedAddress, watchingCatalog, metricsPort, virtualThreads,
+                dht, uploadSlots, uploadRate, hostUploadRate, directReplies);
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public Path getBaseDirectory()
+    {
+        return baseDirectory;
+    }
+
+    //Null when listening on all interfaces.
+    public InetAddress getBindAddress()
+    {
+        return bindAddress;
+    }
+
+    public InetAddress getAdvertisedAddress()
+    {
+        return advertisedAddress;
+    }
+
+    public boolean isWatchingCatalog()
+    {
+        return watchingCatalog;
+    }
+
+    public int getMetricsPort()
+    {
+        return metricsPort;
+    }
+
+    public boolean isUsingVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    public boolean isDhtEnabled()
+    {
+        return dht;
+    }
+
+    public int getUploadSlots()
+    {
+        return uploadSlots;
+    }
+
+    public long getUploadRate()
+    {
+        return uploadRate;
+    }
+
+    public long getHostUploadRate()
+    {
+        return hostUploadRate;
+    }
+
+    public boolean isSendingDirectReplies()
+    {
+        return directReplies;
+    }
+
+    //The "<address>:<port>" other nodes use to reach this one.
+    public String getAddress()
+    {
+        return advertisedAddress.getHostAddress() + ":" + port;
+    }
+
+    //Parses a node address of the form "<host>[:<port>]", using the default port when none is given.
+    public static InetSocketAddress toSocketAddress(String address)
+    {
+        int colon = address.lastIndexOf(':');
+        if(colon < 0)
+        {
+            return new InetSocketAddress(address, DEFAULT_PORT);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    //True if the address has the form "<host>:<port>" with a port toSocketAddress() accepts. Addresses other nodes
+    //pass on are checked with this before they are kept.
+    public static boolean isValidAddress(String address)
+    {
+        int colon = address.lastIndexOf(':');
+        if(colon <= 0 || colon == address.length() - 1 || address.length() - colon > 6)
+        {
+            return false;
+        }
+        for(int i = colon + 1; i < address.length(); i++)
+        {
+            if(address.charAt(i) < '0' || address.charAt(i) > '9')
+            {
+                return false;
+            }
+        }
+        int port = Integer.parseInt(address.substring(colon + 1));
+        return port > 0 && port <= 0xFFFF;
+    }
+}
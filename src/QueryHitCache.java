@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+//Recent query hits seen by this node while relaying replies, so later searches for the same keyword can be
+//answered here instead of being flooded again. Hits are indexed under every word of the advertised catalog line,
+//just like KeywordIndex, expire after a fixed time, and the least recently searched keywords are evicted first.
+public class QueryHitCache
+{
+    //Instance variables and constants.
+    private final int maxKeywords;
+    private final int maxHitsPerKeyword;
+    private final long timeToLiveMillis;
+    private final LinkedHashMap<String, List<Hit>> hits;
+
+    public QueryHitCache(int maxKeywords, int maxHitsPerKeyword, long timeToLiveMillis)
+    {
+        this.maxKeywords = maxKeywords;
+        this.maxHitsPerKeyword = maxHitsPerKeyword;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.hits = new LinkedHashMap<String, List<Hit>>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Hit>> eldest)
+            {
+                return size() > QueryHitCache.this.maxKeywords;
+            }
+        };
+    }
+
+    //Records a hit for the catalog line "<file> <keyword>..." held at the given location.
+    //A newer hit for the same file at the same location replaces the older one.
+    public synchronized void add(String fileKeyword, String location, FileManifest manifest)
+    {
+        Hit hit = new Hit(fileKeyword, location, manifest, System.currentTimeMillis() + timeToLiveMillis);
+        for(String s: fileKeyword.trim().split("\\s+"))
+        {
+            List<Hit> cached = hits.computeIfAbsent(s.toLowerCase(Locale.ROOT), k -> new ArrayList<>());
+            cached.removeIf(h -> h.fileKeyword.equals(fileKeyword) && h.location.equals(location));
+            if(cached.size() >= maxHitsPerKeyword)
+            {
+                cached.remove(0);
+            }
+            cached.add(hit);
+        }
+    }
+
+    //Returns the unexpired hits for the keyword, ignoring case.
+    public synchronized List<Hit> get(String keyword)
+    {
+        String key = keyword.toLowerCase(Locale.ROOT);
+        List<Hit> cached = hits.get(key);
+        if(cached == null)
+        {
+            return new ArrayList<>();
+        }
+        long now = System.currentTimeMillis();
+        cached.removeIf(h -> h.expiresAt <= now);
+        if(cached.isEmpty())
+        {
+            hits.remove(key);
+        }
+        return new ArrayList<>(cached);
+    }
+
+    //Drops every hit held at the location, e.g. when that node leaves the network.
+    public synchronized void removeLocation(String location)
+    {
+        Iterator<List<Hit>> lists = hits.values().iterator();
+        while(lists.hasNext())
+        {
+            List<Hit> cached = lists.next();
+            cached.removeIf(h -> h.location.equals(location));
+            if(cached.isEmpty())
+            {
+                lists.remove();
+            }
+        }
+    }
+
+    public synchronized int size()
+    {
+        return hits.size();
+    }
+
+    //A file advertised by some node, as carried in its reply.
+    public static final class Hit
+    {
+        private final String fileKeyword;
+        private final String location;
+        private final FileManifest manifest;
+        private final long expiresAt;
+
+        Hit(String fileKeyword, String location, FileManifest manifest, long expiresAt)
+        {
+            this.fileKeyword = fileKeyword;
+            this.location = location;
+            this.manifest = manifest;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getFileKeyword()
+        {
+            return fileKeyword;
+        }
+
+        public String getLocation()
+        {
+            return location;
+        }
+
+        public FileManifest getManifest()
+        {
+            return manifest;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+//A query hit received by the search initiator.
+public final class Reply
+{
+    //Instance variables and constants.
+    private final String fileKeyword;
+    private final String location;
+    private final long timeElapsed;
+    private final FileManifest manifest;
+
+    public Reply(String fileKeyword, String location, long timeElapsed, FileManifest manifest)
+    {
+        this.fileKeyword = fileKeyword;
+        this.location = location;
+        this.timeElapsed = timeElapsed;
+        this.manifest = manifest;
+    }
+
+    public String getFile()
+    {
+        return fileKeyword.split("\\s+")[0];
+    }
+
+    //The keywords the file was advertised under, i.e. everything after the file name.
+    public String getKeywords()
+    {
+        String[] tokens = fileKeyword.split("\\s+", 2);
+        return (tokens.length > 1) ? tokens[1] : "";
+    }
+
+    public String getFileKeyword()
+    {
+        return fileKeyword;
+    }
+
+    public String getLocation()
+    {
+        return location;
+    }
+
+    public long getTimeElapsed()
+    {
+        return timeElapsed;
+    }
+
+    public FileManifest getManifest()
+    {
+        return manifest;
+    }
+
+    //True if the other reply advertises the same file with the same content, possibly at another node.
+    public boolean sameContent(Reply other)
+    {
+        return getFile().equals(other.getFile()) && manifest.equals(other.manifest);
+    }
+
+    @Override
+    public String toString()
+    {
+        return fileKeyword + " " + location + "  " + timeElapsed + "ms";
+    }
+}
@@ -0,0 +1,49 @@
+//Smoothed estimate of the per-hop round-trip time, maintained like TCP's SRTT and RTTVAR (RFC 6298).
+//Used to size the timeout of each ring of an expanding-ring search.
+public class RttEstimator
+{
+    //Class constants.
+    private final static long MIN_RING_TIMEOUT_MS = 50;
+    private final static long MAX_HOP_TIMEOUT_MS = 1000;
+
+    //Instance variables and constants.
+    private double smoothedRtt;
+    private double rttVariation;
+    private boolean sampled;
+
+    //Until the first sample arrives, rings wait the original one second per hop.
+    public RttEstimator()
+    {
+        this.smoothedRtt = 0;
+        this.rttVariation = 0;
+        this.sampled = false;
+    }
+
+    //Adds a measured round trip that spanned the given number of hop round trips.
+    public synchronized void addSample(long roundTripMillis, double hops)
+    {
+        double sample = roundTripMillis / Math.max(1, hops);
+        if(!sampled)
+        {
+            //The first sample sets the estimate outright, as RFC 6298 does.
+            smoothedRtt = sample;
+            rttVariation = sample / 2;
+            sampled = true;
+            return;
+        }
+        rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRtt - sample);
+        smoothedRtt = 0.875 * smoothedRtt + 0.125 * sample;
+    }
+
+    //How long to wait for replies from a ring of the given radius.
+    public synchronized long getRingTimeout(int hops)
+    {
+        long perHop = sampled ? (long) Math.ceil(smoothedRtt + 4 * rttVariation) : MAX_HOP_TIMEOUT_MS;
+        return Math.max(MIN_RING_TIMEOUT_MS, hops * Math.min(perHop, MAX_HOP_TIMEOUT_MS));
+    }
+
+    public synchronized long getSmoothedRtt()
+    {
+        return Math.round(smoothedRtt);
+    }
+}
@@ -0,0 +1,325 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+//State of one search started by this node, either an expanding-ring flood or a set of random walkers.
+//Every ring is sent under its own search ID, while all walkers of a walk share one. The search finishes
+//as soon as enough replies have arrived, or when the last ring or the walk's deadline times out.
+//Replies are collected per search, so any number of searches can run at once. Each reply is passed to the search's
+//listeners as soon as it arrives, and can be waited for one by one with awaitReply(), so results can be shown or
+//downloaded while the search goes on. The same file at the same node is kept only once, even when several rings
+//or walkers find it. Replies are collected without locking, and listeners are called outside any lock, so a slow
+//listener holds up only the thread delivering to it.
+public class Search
+{
+    //Instance variables and constants.
+    private final String keyword;
+    private final int repliesWanted;
+    private final long startTime;
+    private final Map<SearchId, Ring> rings;
+    private final Queue<Reply> replies;
+    private final AtomicInteger replyCount;
+    private final Set<String> hits;
+    private final List<Listener> listeners;
+    private final Object arrivals;
+    private final CompletableFuture<List<Reply>> result;
+    private int hopCount;
+    private boolean walk;
+    private int stepBudget;
+    private int stepsGranted;
+    private int walkers;
+    private boolean checkedBack;
+    private boolean finished;
+    private ScheduledFuture<?> timeout;
+
+    public Search(String keyword, int repliesWanted)
+    {
+        this.keyword = keyword;
+        this.repliesWanted = repliesWanted;
+        this.startTime = System.currentTimeMillis();
+        this.rings = new ConcurrentHashMap<>();
+        this.replies = new ConcurrentLinkedQueue<>();
+        this.replyCount = new AtomicInteger();
+        this.hits = ConcurrentHashMap.newKeySet();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.arrivals = new Object();
+        this.result = new CompletableFuture<>();
+        this.hopCount = 0;
+        this.walk = false;
+        this.stepBudget = 0;
+        this.stepsGranted = 0;
+        this.walkers = 0;
+        this.checkedBack = false;
+        this.finished = false;
+    }
+
+    public String getKeyword()
+    {
+        return keyword;
+    }
+
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    public synchronized int getHopCount()
+    {
+        return hopCount;
+    }
+
+    public synchronized boolean isWalk()
+    {
+        return walk;
+    }
+
+    //Total number of walker steps granted so far, an upper bound on the walk messages sent.
+    public synchronized int getStepsGranted()
+    {
+        return stepsGranted;
+    }
+
+    public int getReplyCount()
+    {
+        return replyCount.get();
+    }
+
+    //Replies received so far, in arrival order. Later replies are appended, so earlier indices stay valid.
+    public List<Reply> getReplies()
+    {
+        return new ArrayList<>(replies);
+    }
+
+    //Passes every reply to the listener exactly once, first those received so far and then each new one as it
+    //arrives. Listeners run on the thread that received the reply, possibly several at once, so long work such as
+    //a download should be handed off.
+    public void addListener(Consumer<Reply> listener)
+    {
+        Listener added = new Listener(listener);
+        listeners.add(added);
+        //A reply arriving meanwhile may be passed both here and by addReply(); the listener takes it once.
+        for(Reply reply: replies)
+        {
+            added.accept(reply);
+        }
+    }
+
+    //Waits for the reply with the given index, counting from 0. Returns null if the search finishes or the
+    //timeout passes before it arrives.
+    public Reply awaitReply(int index, long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized(arrivals)
+        {
+            long left;
+            while(replyCount.get() <= index && !isFinished() && (left = deadline - System.currentTimeMillis()) > 0)
+            {
+                arrivals.wait(left);
+            }
+        }
+        //The count is raised after the reply is queued, so the queue holds at least as many replies as it says.
+        if(replyCount.get() <= index)
+        {
+            return null;
+        }
+        Iterator<Reply> iterator = replies.iterator();
+        for(int i = 0; i < index; i++)
+        {
+            iterator.next();
+        }
+        return iterator.next();
+    }
+
+    public synchronized boolean isFinished()
+    {
+        return finished;
+    }
+
+    //Records a new ring. Returns false if the search has already finished.
+    public synchronized boolean startRing(SearchId searchID, int hopCount)
+    {
+        if(finished)
+        {
+            return false;
+        }
+        this.hopCount = hopCount;
+        rings.put(searchID, new Ring(hopCount, System.currentTimeMillis()));
+        return true;
+    }
+
+    //Turns the search into a random walk of the given number of walkers, which may take the given number of steps
+    //in total. Each walker is granted its first steps right away.
+    public synchronized boolean startWalk(int walkers, int steps, int budget)
+    {
+        if(finished)
+        {
+            return false;
+        }
+        walk = true;
+        this.walkers = walkers;
+        stepBudget = budget;
+        stepsGranted = walkers * steps;
+        return true;
+    }
+
+    //Grants a walker that checked back more steps. Returns false once the search is finished or the budget is spent,
+    //and in the latter case counts the walker as stopped.
+    public synchronized boolean grantSteps(int steps)
+    {
+        checkedBack = true;
+        if(finished || !walk)
+        {
+            return false;
+        }
+        if(stepsGranted + steps > stepBudget)
+        {
+            walkers--;
+            return false;
+        }
+        stepsGranted += steps;
+        return true;
+    }
+
+    //Whether no walker has checked back before, i.e. the next call to grantSteps() is the walk's first check.
+    public synchronized boolean isFirstCheck()
+    {
+        return !checkedBack;
+    }
+
+    //Whether every walker has been refused more steps, so none is left to wait for.
+    public synchronized boolean isWalkOver()
+    {
+        return walk && walkers <= 0;
+    }
+
+    public synchronized void setTimeout(ScheduledFuture<?> timeout)
+    {
+        if(this.timeout != null)
+        {
+            this.timeout.cancel(false);
+        }
+        this.timeout = timeout;
+        if(finished)
+        {
+            timeout.cancel(false);
+        }
+    }
+
+    //Round trip of a reply to the given ring, measured from when the ring was sent.
+    public long getRoundTrip(SearchId searchID)
+    {
+        Ring ring = rings.get(searchID);
+        return (ring == null) ? 0 : System.currentTimeMillis() - ring.startTime;
+    }
+
+    //Number of hops a reply travelled, given the hop count left when the responder received the search.
+    public int getDistance(SearchId searchID, int hopsLeft)
+    {
+        Ring ring = rings.get(searchID);
+        return (ring == null) ? 1 : Math.max(1, ring.hopCount - hopsLeft);
+    }
+
+    //Adds a reply and passes it to the listeners, unless the same file at the same node was already found.
+    //Returns true once enough distinct replies have arrived to satisfy the search.
+    public boolean addReply(Reply reply)
+    {
+        if(!hits.add(reply.getFile() + " " + reply.getLocation()))
+        {
+            return false;
+        }
+        replies.add(reply);
+        int count = replyCount.incrementAndGet();
+        synchronized(arrivals)
+        {
+            arrivals.notifyAll();
+        }
+        for(Listener listener: listeners)
+        {
+            listener.accept(reply);
+        }
+        return count >= repliesWanted;
+    }
+
+    //Marks the search as finished and cancels the outstanding ring. Returns false if it already was.
+    public boolean finish()
+    {
+        synchronized(this)
+        {
+            if(finished)
+            {
+                return false;
+            }
+            finished = true;
+            if(timeout != null)
+            {
+                timeout.cancel(false);
+            }
+        }
+        result.complete(getReplies());
+        synchronized(arrivals)
+        {
+            arrivals.notifyAll();
+        }
+        return true;
+    }
+
+    //Waits for the search to finish. Returns false if it is still running after the timeout.
+    public boolean awaitFinished(long timeoutMillis) throws InterruptedException
+    {
+        try
+        {
+            result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch(TimeoutException e)
+        {
+            return false;
+        }
+        catch(ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    //Completes with the replies received once the search finishes. Replies arriving later still reach the
+    //listeners and getReplies(), but not this list.
+    public CompletableFuture<List<Reply>> getResult()
+    {
+        return result;
+    }
+
+    //A listener and the replies already passed to it.
+    private static class Listener
+    {
+        private final Consumer<Reply> consumer;
+        private final Set<Reply> delivered;
+
+        Listener(Consumer<Reply> consumer)
+        {
+            this.consumer = consumer;
+            //Replies that are equal but come from different nodes are still distinct hits.
+            this.delivered = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+        }
+
+        void accept(Reply reply)
+        {
+            if(delivered.add(reply))
+            {
+                consumer.accept(reply);
+            }
+        }
+    }
+
+    private static class Ring
+    {
+        private final int hopCount;
+        private final long startTime;
+
+        Ring(int hopCount, long startTime)
+        {
+            this.hopCount = hopCount;
+            this.startTime = startTime;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Compact 128-bit search identifier.
+//The high word holds the initiator's IPv4 address, its port and a per-process nonce; the low word is a sequence number.
+public final class SearchId
+{
+    //Class constants.
+    public final static int BYTES = 16;
+    private final static SecureRandom RANDOM = new SecureRandom();
+    private final static int NONCE = RANDOM.nextInt() & 0xFFFF;
+    private final static AtomicLong SEQUENCE = new AtomicLong(RANDOM.nextLong());
+
+    //Instance variables and constants.
+    private final long high;
+    private final long low;
+
+    public SearchId(long high, long low)
+    {
+        this.high = high;
+        this.low = low;
+    }
+
+    //Creates a new identifier for a search initiated by the given address and port.
+    public static SearchId create(InetAddress initiator, int port)
+    {
+        int address = 0;
+        if(initiator instanceof Inet4Address)
+        {
+            address = ByteBuffer.wrap(initiator.getAddress()).getInt();
+        }
+        long high = ((long) address << 32) | ((long) (port & 0xFFFF) << 16) | NONCE;
+        return new SearchId(high, SEQUENCE.getAndIncrement());
+    }
+
+    public static SearchId read(ByteBuffer buffer)
+    {
+        return new SearchId(buffer.getLong(), buffer.getLong());
+    }
+
+    public void write(ByteBuffer buffer)
+    {
+        buffer.putLong(high);
+        buffer.putLong(low);
+    }
+
+    //Returns the IPv4 address of the node that initiated the search.
+    public String getInitiator()
+    {
+        try
+        {
+            return InetAddress.getByAddress(ByteBuffer.allocate(4).putInt((int) (high >>> 32)).array()).getHostAddress();
+        }
+        catch(UnknownHostException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int getInitiatorPort()
+    {
+        return (int) (high >>> 16) & 0xFFFF;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof SearchId))
+        {
+            return false;
+        }
+        SearchId other = (SearchId) o;
+        return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Long.hashCode(high) * 31 + Long.hashCode(low);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%016x%016x", high, low);
+    }
+}
@@ -0,0 +1,422 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+//Load-test harness that boots many nodes in one process on loopback, each on its own port and home directory.
+//The nodes are wired into a random connected topology and given generated catalogs whose keywords follow a
+//Zipf distribution, then driven with concurrent searches and downloads. Reports the query traffic per search,
+//search latency percentiles and download throughput. In lookup mode the nodes also form a DHT, and the queries
+//are exact file name lookups in it instead of keyword searches.
+//
+//Usage: Simulator [nodes] [degree] [queries] [search|walk|lookup] [downloads] [concurrency] [seed] [platform|virtual]
+public class Simulator
+{
+    //Class constants.
+    private final static int BASE_PORT = 20000;
+    private final static int KEYWORDS = 500;
+    private final static int FILES_PER_NODE = 3;
+    private final static int KEYWORDS_PER_FILE = 2;
+    private final static int FILE_SIZE = 256 * 1024;
+    private final static double ZIPF_EXPONENT = 1.0;
+    private final static int WALKERS = 4;
+    private final static long SEARCH_TIMEOUT_MS = 120000;
+    private final static long LISTEN_TIMEOUT_MS = 10000;
+    private final static long SETTLE_MS = 500;
+    private final static byte[] QUERY_TRAFFIC = {Message.SEARCH, Message.REPLY, Message.REPLY_ACK, Message.WALK,
+            Message.WALK_CHECK, Message.WALK_STATUS, Message.DHT_FIND_NODE, Message.DHT_FIND_VALUE, Message.DHT_STORE, Message.DHT_VALUE,
+            Message.DHT_NODES};
+
+    //Instance variables and constants.
+    private final int nodeCount;
+    private final int degree;
+    private final int queries;
+    private final String mode;
+    private final int downloads;
+    private final int concurrency;
+    private final boolean virtualThreads;
+    private final boolean directReplies;
+    private final Random random;
+    private final double[] keywordWeights;
+    private final Set<String> sharedKeywords;
+    private final List<Node> nodes;
+    private final Map<Search, Node> initiators;
+    private final PrintStream out;
+
+    public Simulator(int nodeCount, int degree, int queries, String mode, int downloads, int concurrency, long seed,
+                     boolean virtualThreads, boolean directReplies)
+    {
+        this.nodeCount = nodeCount;
+        this.degree = degree;
+        this.queries = queries;
+        this.mode = mode;
+        this.downloads = downloads;
+        this.concurrency = concurrency;
+        this.virtualThreads = virtualThreads;
+        this.directReplies = directReplies;
+        this.random = new Random(seed);
+        this.keywordWeights = zipfCumulative(KEYWORDS, ZIPF_EXPONENT);
+        this.sharedKeywords = ConcurrentHashMap.newKeySet();
+        this.nodes = new ArrayList<>();
+        this.initiators = new ConcurrentHashMap<>();
+        this.out = System.out;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int nodeCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int degree = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int queries = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        String mode = (args.length > 3) ? args[3].toLowerCase(Locale.ROOT) : "search";
+        int downloads = (args.length > 4) ? Integer.parseInt(args[4]) : 20;
+        int concurrency = (args.length > 5) ? Integer.parseInt(args[5]) : 8;
+        long seed = (args.length > 6) ? Long.parseLong(args[6]) : 1;
+        boolean virtualThreads = args.length > 7 && args[7].equalsIgnoreCase("virtual");
+        boolean directReplies = args.length > 8 && args[8].equalsIgnoreCase("direct");
+        new Simulator(nodeCount, degree, queries, mode, downloads, concurrency, seed, virtualThreads, directReplies).run();
+        System.exit(0);
+    }
+
+    //Runs the whole simulation. Output of the nodes themselves is discarded so only the report is printed.
+    public void run() throws Exception
+    {
+        Path base = Files.createTempDirectory("p2p-sim");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try
+        {
+            startNodes(base);
+            int links = connectNodes();
+            out.println("Simulating " + nodeCount + " nodes with " + links + " links (average degree "
+                    + String.format("%.1f", 2.0 * links / nodeCount) + ") using " + mode + (directReplies ? " with direct replies." : "."));
+            for(int round = 0; round < AttenuatedBloomFilter.DEPTH; round++)
+            {
+                for(Node node: nodes)
+                {
+                    node.sendSummaries();
+                }
+                Thread.sleep(SETTLE_MS);
+            }
+            //Let the nodes finish publishing their catalogs in the DHT, then republish once, as they would after a while,
+            //so records published while the DHT was still small move to the nodes closest to their keys.
+            awaitQuiet();
+            if(mode.equals("lookup"))
+            {
+                republish();
+            }
+            List<Search> answered = runQueries();
+            runDownloads(answered);
+        }
+        finally
+        {
+            System.setOut(out);
+            deleteTree(base);
+        }
+    }
+
+    //Writes every node's home directory and catalog, then starts the nodes on consecutive loopback ports.
+    private void startNodes(Path base) throws IOException, InterruptedException
+    {
+        byte[] content = new byte[FILE_SIZE];
+        for(int i = 0; i < nodeCount; i++)
+        {
+            Path home = Files.createDirectories(base.resolve("node" + i));
+            StringBuilder catalog = new StringBuilder();
+            for(int f = 0; f < FILES_PER_NODE; f++)
+            {
+                String file = "file" + i + "_" + f + ".bin";
+                random.nextBytes(content);
+                Files.write(home.resolve(file), content);
+                catalog.append(file);
+                for(int k = 0; k < KEYWORDS_PER_FILE; k++)
+                {
+                    String keyword = "kw" + nextKeyword();
+                    sharedKeywords.add(keyword);
+                    catalog.append(' ').append(keyword);
+                }
+                catalog.append('\n');
+            }
+            Files.write(home.resolve("availableFiles.txt"), catalog.toString().getBytes());
+
+            NodeConfig config = NodeConfig.defaults().withPort(BASE_PORT + i).withBaseDirectory(base)
+                    .withBindAddress(InetAddress.getLoopbackAddress()).withCatalogWatching(false).withVirtualThreads(virtualThreads)
+                    .withDht(mode.equals("lookup")).withDirectReplies(directReplies);
+            Node node = new Node("node" + i, config);
+            node.run();
+            nodes.add(node);
+        }
+        for(int i = 0; i < nodeCount; i++)
+        {
+            awaitListening(BASE_PORT + i);
+        }
+    }
+
+    //Joins every node to a random earlier one, which keeps the overlay connected, then adds random links
+    //until the average degree is reached. Returns the number of links.
+    private int connectNodes() throws InterruptedException
+    {
+        Set<Long> edges = new HashSet<>();
+        for(int i = 1; i < nodeCount; i++)
+        {
+            link(i, random.nextInt(i), edges);
+        }
+        long wanted = (long) nodeCount * degree / 2;
+        long attempts = 0;
+        while(edges.size() < wanted && attempts++ < 100 * wanted)
+        {
+            int a = random.nextInt(nodeCount);
+            int b = random.nextInt(nodeCount);
+            if(a != b)
+            {
+                link(a, b, edges);
+            }
+        }
+        Thread.sleep(SETTLE_MS);
+        return edges.size();
+    }
+
+    private void link(int a, int b, Set<Long> edges)
+    {
+        if(edges.add((long) Math.min(a, b) * nodeCount + Math.max(a, b)))
+        {
+            nodes.get(a).joinNetwork(nodes.get(b).getAddress());
+        }
+    }
+
+    //Has every node republish its catalog in the DHT, a few nodes at a time.
+    private void republish() throws InterruptedException, ExecutionException
+    {
+        ExecutorService publishers = Executors.newFixedThreadPool(concurrency);
+        List<Future<?>> running = new ArrayList<>();
+        for(Node node: nodes)
+        {
+            running.add(publishers.submit(node::publishCatalog));
+        }
+        for(Future<?> future: running)
+        {
+            future.get();
+        }
+        publishers.shutdown();
+        awaitQuiet();
+    }
+
+    //Runs the queries from random nodes, a few at a time, for keywords drawn from the same skewed distribution
+    //as the catalogs. Returns the searches that got at least one reply.
+    private List<Search> runQueries() throws InterruptedException, ExecutionException
+    {
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        List<Future<Search>> started = new ArrayList<>();
+        long trafficBefore = queryTraffic();
+        long startTime = System.currentTimeMillis();
+        for(int q = 0; q < queries; q++)
+        {
+            Node initiator = nodes.get(random.nextInt(nodeCount));
+            String keyword = mode.equals("lookup") ? nextFile() : nextSharedKeyword();
+            started.add(clients.submit(() ->
+            {
+                Search search;
+                switch(mode)
+                {
+                    case "walk":
+                        search = initiator.walk(keyword, 1, WALKERS);
+                        break;
+                    case "lookup":
+                        search = initiator.lookup(keyword);
+                        break;
+                    default:
+                        search = initiator.search(keyword, 1);
+                }
+                initiators.put(search, initiator);
+                search.awaitFinished(SEARCH_TIMEOUT_MS);
+                return search;
+            }));
+        }
+        List<Search> answered = new ArrayList<>();
+        List<Long> latencies = new ArrayList<>();
+        for(Future<Search> future: started)
+        {
+            Search search = future.get();
+            List<Reply> replies = search.getReplies();
+            if(!replies.isEmpty())
+            {
+                answered.add(search);
+                latencies.add(replies.get(0).getTimeElapsed());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        clients.shutdown();
+
+        //Floods keep spreading after the first reply, so wait for the traffic to die down before counting it.
+        long traffic = awaitQuiet();
+
+        out.println("Queries: " + queries + " in " + elapsed + "ms, " + answered.size() + " answered ("
+                + (100 * answered.size() / Math.max(1, queries)) + "%).");
+        out.println("Messages per query: " + String.format("%.1f", (double) (traffic - trafficBefore) / Math.max(1, queries))
+                + " " + trafficByType());
+        Collections.sort(latencies);
+        out.println("Latency to first reply: p50 " + percentile(latencies, 0.50) + "ms, p90 " + percentile(latencies, 0.90)
+                + "ms, p99 " + percentile(latencies, 0.99) + "ms, max " + percentile(latencies, 1.0) + "ms.");
+        return answered;
+    }
+
+    //Downloads the first reply of randomly chosen answered searches, one at a time, and reports the throughput.
+    private void runDownloads(List<Search> answered)
+    {
+        if(answered.isEmpty() || downloads == 0)
+        {
+            return;
+        }
+        long bytes = 0;
+        long elapsed = 0;
+        int completed = 0;
+        Collections.shuffle(answered, random);
+        for(int d = 0; d < downloads; d++)
+        {
+            Search search = answered.get(d % answered.size());
+            Node initiator = initiators.get(search);
+            List<Reply> replies = search.getReplies();
+            long startTime = System.nanoTime();
+            if(initiator != null && initiator.download(replies.get(0), replies))
+            {
+                elapsed += System.nanoTime() - startTime;
+                bytes += replies.get(0).getManifest().getSize();
+                completed++;
+            }
+        }
+        double seconds = elapsed / 1e9;
+        out.println("Downloads: " + completed + " of " + downloads + " completed, " + bytes + " bytes in "
+                + Math.round(seconds * 1000) + "ms (" + String.format("%.1f", (seconds > 0) ? bytes / seconds / (1 << 20) : 0.0)
+                + " MiB/s).");
+    }
+
+    //Waits until no query messages have been sent for a while and returns the total sent so far.
+    private long awaitQuiet() throws InterruptedException
+    {
+        long traffic = queryTraffic();
+        do
+        {
+            Thread.sleep(SETTLE_MS);
+        }
+        while(traffic != (traffic = queryTraffic()));
+        return traffic;
+    }
+
+    //Total query messages sent by all nodes so far.
+    private long queryTraffic()
+    {
+        long total = 0;
+        for(byte type: QUERY_TRAFFIC)
+        {
+            for(Node node: nodes)
+            {
+                total += node.getMessagesSent(type);
+            }
+        }
+        return total;
+    }
+
+    private String trafficByType()
+    {
+        long[] counts = new long[Byte.MAX_VALUE + 1];
+        for(Node node: nodes)
+        {
+            for(byte type: QUERY_TRAFFIC)
+            {
+                counts[type] += node.getMessagesSent(type);
+            }
+        }
+        return "(search " + counts[Message.SEARCH] + ", reply " + counts[Message.REPLY] + ", ack " + counts[Message.REPLY_ACK]
+                + ", walk " + counts[Message.WALK]
+                + ", check " + (counts[Message.WALK_CHECK] + counts[Message.WALK_STATUS]) + ", dht "
+                + (counts[Message.DHT_FIND_NODE] + counts[Message.DHT_FIND_VALUE] + counts[Message.DHT_STORE]
+                + counts[Message.DHT_VALUE] + counts[Message.DHT_NODES]) + " in total)";
+    }
+
+    private static long percentile(List<Long> sorted, double p)
+    {
+        if(sorted.isEmpty())
+        {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    //Cumulative Zipf weights, normalized to end at 1.
+    private static double[] zipfCumulative(int n, double exponent)
+    {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for(int i = 0; i < n; i++)
+        {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for(int i = 0; i < n; i++)
+        {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private int nextKeyword()
+    {
+        int index = Arrays.binarySearch(keywordWeights, random.nextDouble());
+        return Math.min((index < 0) ? -index - 1 : index, KEYWORDS - 1);
+    }
+
+    //Name of a random file shared by some node.
+    private String nextFile()
+    {
+        return "file" + random.nextInt(nodeCount) + "_" + random.nextInt(FILES_PER_NODE) + ".bin";
+    }
+
+    //Draws a query keyword that some node shares, so that searches measure latency rather than give-up time.
+    private String nextSharedKeyword()
+    {
+        while(true)
+        {
+            String keyword = "kw" + nextKeyword();
+            if(sharedKeywords.contains(keyword))
+            {
+                return keyword;
+            }
+        }
+    }
+
+    private static void awaitListening(int port) throws IOException, InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + LISTEN_TIMEOUT_MS;
+        while(true)
+        {
+            try(Socket socket = new Socket())
+            {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+                return;
+            }
+            catch(IOException e)
+            {
+                if(System.currentTimeMillis() > deadline)
+                {
+                    throw new IOException("Node on port " + port + " did not start listening", e);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    private static void deleteTree(Path root)
+    {
+        try(Stream<Path> paths = Files.walk(root))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error deleting " + root + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+//Downloads a file in fixed-size chunks from every peer that advertised the same content.
+//Each peer is served by its own thread pulling chunks from a shared queue, so fast peers naturally take
+//more chunks than slow ones. Once the queue is empty, idle peers re-fetch chunks still in flight at slower
+//peers, and the first verified copy wins. Every chunk is checked against the hash advertised in the reply
+//and recorded in the download's progress sidecar, so an interrupted download resumes with the missing chunks.
+//Chunks are requested compressed while that is faster: compression pays off when the link is the bottleneck and
+//costs time when the CPU is, so each peer's chunks are timed both ways and the faster way is used, trying the
+//other again now and then in case the link or the load changed, less often each time it loses again.
+public class SwarmDownload
+{
+    //Class constants.
+    private final static int CONNECT_TIMEOUT_MS = 5000;
+    private final static int READ_TIMEOUT_MS = 30000;
+    private final static int MAX_COPIES = 2;
+    private final static int MIN_PROBE_INTERVAL = 16;
+    private final static int MAX_PROBE_INTERVAL = 256;
+
+    //Instance variables and constants.
+    private final String file;
+    private final FileManifest manifest;
+    private final List<String> peers;
+    private final Path target;
+    private final DownloadProgress progress;
+    private final BiConsumer<Integer, Integer> listener;
+    private final Deque<Integer> pending;
+    private final Map<Integer, Integer> inFlight;
+    private final BitSet completed;
+    private final Map<String, Integer> chunksPerPeer;
+    private final LongAdder bytesReceived;
+    private int remaining;
+
+    public SwarmDownload(String file, FileManifest manifest, List<String> peers, Path target, DownloadProgress progress)
+    {
+        this(file, manifest, peers, target, progress, (completed, total) -> { });
+    }
+
+    //The listener is given the number of chunks completed and the total each time a chunk is verified.
+    public SwarmDownload(String file, FileManifest manifest, List<String> peers, Path target, DownloadProgress progress,
+                         BiConsumer<Integer, Integer> listener)
+    {
+        this.file = file;
+        this.manifest = manifest;
+        this.peers = peers;
+        this.target = target;
+        this.progress = progress;
+        this.listener = listener;
+        this.pending = new ArrayDeque<>();
+        this.inFlight = new HashMap<>();
+        this.completed = progress.getCompleted();
+        this.chunksPerPeer = new ConcurrentHashMap<>();
+        this.bytesReceived = new LongAdder();
+        this.remaining = manifest.getChunkCount() - completed.cardinality();
+        for(int chunk = completed.nextClearBit(0); chunk < manifest.getChunkCount(); chunk = completed.nextClearBit(chunk + 1))
+        {
+            pending.add(chunk);
+        }
+    }
+
+    //Fetches all chunks and returns true once every chunk has been written and verified.
+    public boolean run() throws IOException
+    {
+        ExecutorService fetchers = Executors.newFixedThreadPool(peers.size());
+        try(FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            List<Future<?>> running = new ArrayList<>();
+            for(String peer: peers)
+            {
+                running.add(fetchers.submit(() -> fetchFrom(peer, out)));
+            }
+            for(Future<?> f: running)
+            {
+                try
+                {
+                    f.get();
+                }
+                catch(ExecutionException e)
+                {
+                    System.err.println("Error downloading file: " + e.getCause());
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            fetchers.shutdownNow();
+        }
+        return isComplete();
+    }
+
+    public synchronized boolean isComplete()
+    {
+        return remaining == 0;
+    }
+
+    //Number of chunks each peer contributed to the finished file.
+    public Map<String, Integer> getChunksPerPeer()
+    {
+        return chunksPerPeer;
+    }
+
+    //Bytes read from all peers as sent, i.e. compressed where they were, including endgame duplicates and chunks
+    //that failed verification.
+    public long getBytesReceived()
+    {
+        return bytesReceived.sum();
+    }
+
+    //Requests chunks from one peer over a single connection until none are left or the peer misbehaves.
+    private void fetchFrom(String peer, FileChannel out)
+    {
+        Integer chunk = null;
+        try(Socket socket = new Socket())
+        {
+            socket.connect(NodeConfig.toSocketAddress(peer), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            OutputStream request = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            byte[] buffer = new byte[FileManifest.CHUNK_SIZE];
+            MessageDigest digest = FileManifest.newDigest();
+            CompressionChoice choice = new CompressionChoice();
+            while((chunk = nextChunk()) != null)
+            {
+                long offset = manifest.getChunkOffset(chunk);
+                int length = manifest.getChunkLength(chunk);
+                boolean compressed = choice.next();
+                long start = System.nanoTime();
+                int codecs = compressed ? BlockCompression.DEFLATE : BlockCompression.NONE;
+                request.write(WireCodec.encode(Message.fileRequest(file, offset, length, codecs)).array());
+                request.flush();
+                long size = in.readLong();
+                if(size != length)
+                {
+                    throw new IOException("peer offered " + size + " bytes for chunk " + chunk);
+                }
+                if(codecs != BlockCompression.NONE && in.readByte() == BlockCompression.DEFLATE)
+                {
+                    bytesReceived.add(BlockCompression.decompress(in, buffer, length));
+                }
+                else
+                {
+                    in.readFully(buffer, 0, length);
+                    bytesReceived.add(length);
+                }
+                choice.record(compressed, (double) (System.nanoTime() - start) / length);
+                digest.update(buffer, 0, length);
+                if(!manifest.verify(chunk, digest.digest()))
+                {
+                    throw new IOException("chunk " + chunk + " failed verification");
+                }
+                //Duplicate copies from the endgame are verified identical, so writing one twice is harmless.
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                while(data.hasRemaining())
+                {
+                    out.write(data, offset + data.position());
+                }
+                if(claim(chunk))
+                {
+                    progress.markCompleted(chunk);
+                    chunksPerPeer.merge(peer, 1, Integer::sum);
+                    listener.accept(progress.getCompletedCount(), progress.getChunkCount());
+                }
+                chunk = null;
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error downloading from " + peer + ": " + e.getMessage());
+        }
+        finally
+        {
+            if(chunk != null)
+            {
+                release(chunk);
+            }
+        }
+    }
+
+    //Hands out the next chunk to fetch, duplicating chunks still in flight elsewhere once none are left.
+    //Waits while every outstanding chunk is already being fetched by enough peers.
+    private synchronized Integer nextChunk()
+    {
+        while(remaining > 0)
+        {
+            Integer chunk = pending.poll();
+            if(chunk == null)
+            {
+                for(Map.Entry<Integer, Integer> entry: inFlight.entrySet())
+                {
+                    if(entry.getValue() < MAX_COPIES)
+                    {
+                        chunk = entry.getKey();
+                        break;
+                    }
+                }
+            }
+            if(chunk != null)
+            {
+                inFlight.merge(chunk, 1, Integer::sum);
+                return chunk;
+            }
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    //Marks a verified chunk as done. Returns false if another peer already delivered it.
+    private synchronized boolean claim(int chunk)
+    {
+        inFlight.computeIfPresent(chunk, (c, copies) -> (copies > 1) ? copies - 1 : null);
+        if(completed.get(chunk))
+        {
+            return false;
+        }
+        completed.set(chunk);
+        inFlight.remove(chunk);
+        remaining--;
+        notifyAll();
+        return true;
+    }
+
+    //Returns a chunk whose fetch failed so that another peer can pick it up.
+    private synchronized void release(int chunk)
+    {
+        inFlight.computeIfPresent(chunk, (c, copies) -> (copies > 1) ? copies - 1 : null);
+        if(!completed.get(chunk) && !inFlight.containsKey(chunk) && !pending.contains(chunk))
+        {
+            pending.addFirst(chunk);
+        }
+        notifyAll();
+    }
+
+    //Whether to request a peer's next chunk compressed: whichever way was faster per byte so far. Each way is
+    //measured first, plain before compressed, then the slower way is tried again after MIN_PROBE_INTERVAL chunks,
+    //waiting twice as long after each try that loses, up to MAX_PROBE_INTERVAL.
+    private static class CompressionChoice
+    {
+        //Nanoseconds per byte fetched plain and compressed, 0 until measured.
+        private double plain;
+        private double compressed;
+        private int probeInterval = MIN_PROBE_INTERVAL;
+        private int untilProbe = MIN_PROBE_INTERVAL;
+
+        boolean next()
+        {
+            if(plain == 0 || compressed == 0)
+            {
+                return plain != 0;
+            }
+            boolean faster = compressed < plain;
+            return (--untilProbe == 0) != faster;
+        }
+
+        void record(boolean wasCompressed, double nanosPerByte)
+        {
+            boolean probe = plain != 0 && compressed != 0 && untilProbe == 0;
+            if(wasCompressed)
+            {
+                compressed = (compressed == 0) ? nanosPerByte : 0.7 * compressed + 0.3 * nanosPerByte;
+            }
+            else
+            {
+                plain = (plain == 0) ? nanosPerByte : 0.7 * plain + 0.3 * nanosPerByte;
+            }
+            if(probe)
+            {
+                boolean won = (compressed < plain) == wasCompressed;
+                probeInterval = won ? MIN_PROBE_INTERVAL : Math.min(MAX_PROBE_INTERVAL, 2 * probeInterval);
+                untilProbe = probeInterval;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+//Token bucket limiting a byte rate. Tokens accrue at the rate, up to a burst of BURST_MS worth, and every byte
+//sent spends one, so over any interval at most the rate plus one burst goes out. A rate of 0 means unlimited.
+public class TokenBucket
+{
+    //Class constants.
+    public final static long UNLIMITED = 0;
+    private final static long BURST_MS = 50;
+    private final static long MIN_BURST = 16 * 1024;
+
+    //Instance variables and constants.
+    private final long bytesPerSecond;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt;
+
+    public TokenBucket(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+        this.capacity = Math.max(MIN_BURST, bytesPerSecond * BURST_MS / 1000.0);
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    //Bytes that may be sent now.
+    public synchronized long available()
+    {
+        if(bytesPerSecond == UNLIMITED)
+        {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * bytesPerSecond / 1e9);
+        refilledAt = now;
+        return (long) tokens;
+    }
+
+    public synchronized void spend(long bytes)
+    {
+        if(bytesPerSecond != UNLIMITED)
+        {
+            tokens -= bytes;
+        }
+    }
+
+    //Nanoseconds until the given number of bytes may be sent, at most a full bucket's worth.
+    public synchronized long nanosUntil(long bytes)
+    {
+        if(bytesPerSecond == UNLIMITED)
+        {
+            return 0;
+        }
+        double missing = Math.min(bytes, capacity) - tokens;
+        return (missing <= 0) ? 0 : (long) (missing * 1e9 / bytesPerSecond);
+    }
+
+    //True if the bucket is full, i.e. nothing was sent recently.
+    public synchronized boolean isFull()
+    {
+        available();
+        return bytesPerSecond == UNLIMITED || tokens >= capacity;
+    }
+}
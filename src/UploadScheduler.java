@@ -0,0 +1,116 @@
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Keeps file uploads from crowding out search traffic. Each file request takes one of a fixed number of upload
+//slots while its chunk is sent. Requests that find every slot taken wait in a queue per downloading host, and a
+//freed slot goes to the next host in turn, so a host with many requests queued gets no more than its share.
+//Upload bytes are spent from a token bucket for the node and one for the downloading host, which cap the upload
+//rate below the uplink so that messages sent to neighbors never queue behind file bytes.
+public class UploadScheduler
+{
+    //Instance variables and constants.
+    private final int slots;
+    private final long hostBytesPerSecond;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final TokenBucket nodeBucket;
+    private final Map<String, TokenBucket> hostBuckets;
+    private final Map<String, Integer> active;
+    private final LinkedHashMap<String, Deque<Runnable>> waiting;
+    private int busy;
+
+    public UploadScheduler(int slots, long nodeBytesPerSecond, long hostBytesPerSecond, Executor executor,
+                           ScheduledExecutorService timer)
+    {
+        this.slots = slots;
+        this.hostBytesPerSecond = hostBytesPerSecond;
+        this.executor = executor;
+        this.timer = timer;
+        this.nodeBucket = new TokenBucket(nodeBytesPerSecond);
+        this.hostBuckets = new HashMap<>();
+        this.active = new HashMap<>();
+        this.waiting = new LinkedHashMap<>();
+        this.busy = 0;
+    }
+
+    //Runs the upload on the executor once a slot is free. The upload must call finished() once it has been sent.
+    public synchronized void submit(String host, Runnable upload)
+    {
+        waiting.computeIfAbsent(host, h -> new ArrayDeque<>()).add(upload);
+        startWaiting();
+    }
+
+    //Frees the slot of a finished or failed upload to the given host.
+    public synchronized void finished(String host)
+    {
+        busy--;
+        active.computeIfPresent(host, (h, count) -> (count > 1) ? count - 1 : null);
+        //Forget hosts that have been idle long enough for their bucket to refill.
+        hostBuckets.entrySet().removeIf(e -> !active.containsKey(e.getKey()) && !waiting.containsKey(e.getKey())
+                && e.getValue().isFull());
+        startWaiting();
+    }
+
+    //Number of uploads waiting for a slot.
+    public synchronized int getQueued()
+    {
+        int queued = 0;
+        for(Deque<Runnable> uploads: waiting.values())
+        {
+            queued += uploads.size();
+        }
+        return queued;
+    }
+
+    //Rate limit for a connection uploading to the host.
+    public Connection.Throttle throttle(String host)
+    {
+        TokenBucket hostBucket;
+        synchronized(this)
+        {
+            hostBucket = hostBuckets.computeIfAbsent(host, h -> new TokenBucket(hostBytesPerSecond));
+        }
+        return new Connection.Throttle()
+        {
+            @Override
+            public long available()
+            {
+                return Math.min(nodeBucket.available(), hostBucket.available());
+            }
+
+            @Override
+            public void spend(long bytes)
+            {
+                nodeBucket.spend(bytes);
+                hostBucket.spend(bytes);
+            }
+
+            @Override
+            public void resumeLater(Connection connection, long bytes)
+            {
+                long delay = Math.max(nodeBucket.nanosUntil(bytes), hostBucket.nanosUntil(bytes));
+                timer.schedule(connection::resume, Math.max(1, delay), TimeUnit.NANOSECONDS);
+            }
+        };
+    }
+
+    //Starts waiting uploads while slots are free, taking one from each host in turn.
+    private void startWaiting()
+    {
+        while(busy < slots && !waiting.isEmpty())
+        {
+            String host = waiting.keySet().iterator().next();
+            Deque<Runnable> uploads = waiting.remove(host);
+            Runnable upload = uploads.poll();
+            if(!uploads.isEmpty())
+            {
+                waiting.put(host, uploads);
+            }
+            busy++;
+            active.merge(host, 1, Integer::sum);
+            executor.execute(upload);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//Length-prefixed binary wire format shared by all node connections.
+//
+//Every frame is a 4-byte big-endian body length followed by the body. The body starts with the type byte,
+//and the schema registered for that type decides which of the following parts are present, in this order:
+//  search ID (16 bytes) | hop count (1 byte; for replies, the hops left when the responder got the search;
+//  for walkers, the steps left before checking back)
+//  | field count (varint, variable-length types only) | fields, each a varint byte length followed by UTF-8 bytes | numbers, each a zigzag varlong
+//  | data, a varint byte length followed by raw bytes
+public final class WireCodec
+{
+    //Class constants.
+    public final static int MAX_FRAME_SIZE = 1 << 20;
+    private final static int HEADER_SIZE = 4;
+    private final static int VARIABLE = -1;
+    private final static Schema[] SCHEMAS = new Schema[128];
+
+    static
+    {
+        define(Message.JOIN, false, false, 0, 1, false);
+        define(Message.LEAVING, false, false, VARIABLE, 0, false);
+        define(Message.SEARCH, true, true, 1, 0, false);
+        define(Message.REPLY, true, true, 2, 1, true);
+        define(Message.FILE_REQUEST, false, false, 1, 3, false);
+        define(Message.SUMMARY, false, false, 0, 0, true);
+        define(Message.WALK, true, true, 1, 0, false);
+        define(Message.WALK_CHECK, true, false, 0, 0, false);
+        define(Message.WALK_STATUS, true, true, 0, 0, false);
+        define(Message.HEARTBEAT, false, false, 0, 0, false);
+        define(Message.DHT_FIND_NODE, false, false, 2, 0, false);
+        define(Message.DHT_FIND_VALUE, false, false, 2, 0, false);
+        define(Message.DHT_STORE, false, false, 4, 1, true);
+        define(Message.DHT_VALUE, false, false, 2, 1, true);
+        define(Message.DHT_NODES, false, false, VARIABLE, 0, false);
+        define(Message.REPLY_ACK, true, false, 2, 0, false);
+    }
+
+    private WireCodec()
+    {
+    }
+
+    private static void define(byte type, boolean searchId, boolean hopCount, int fields, int numbers, boolean data)
+    {
+        SCHEMAS[type] = new Schema(searchId, hopCount, fields, numbers, data);
+    }
+
+    //Encodes a message into a new buffer ready to be written. Throws IllegalArgumentException if the frame would be
+    //larger than MAX_FRAME_SIZE, which peers reject, so check fits() first for messages that may be that large.
+    public static ByteBuffer encode(Message message)
+    {
+        Schema schema = SCHEMAS[message.getType()];
+        String[] fields = message.getFields();
+        long[] numbers = message.getNumbers();
+        byte[] data = message.getData();
+        byte[][] encoded = new byte[fields.length][];
+        for(int i = 0; i < fields.length; i++)
+        {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        int size = bodySize(schema, encoded, numbers, data);
+        if(size > MAX_FRAME_SIZE)
+        {
+            throw new IllegalArgumentException("Frame of " + size + " bytes exceeds " + MAX_FRAME_SIZE);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+        buffer.putInt(size);
+        buffer.put(message.getType());
+        if(schema.searchId)
+        {
+            message.getSearchId().write(buffer);
+        }
+        if(schema.hopCount)
+        {
+            buffer.put((byte) message.getHopCount());
+        }
+        if(schema.fields == VARIABLE)
+        {
+            putVarInt(buffer, fields.length);
+        }
+        for(byte[] field: encoded)
+        {
+            putVarInt(buffer, field.length);
+            buffer.put(field);
+        }
+        for(long n: numbers)
+        {
+            putVarLong(buffer, zigZag(n));
+        }
+        if(schema.data)
+        {
+            putVarInt(buffer, data.length);
+            buffer.put(data);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    //Whether the message encodes to a frame peers accept. A reply or DHT record carrying the manifest of a file
+    //larger than about 32 GiB does not.
+    public static boolean fits(Message message)
+    {
+        String[] fields = message.getFields();
+        byte[][] encoded = new byte[fields.length][];
+        for(int i = 0; i < fields.length; i++)
+        {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bodySize(SCHEMAS[message.getType()], encoded, message.getNumbers(), message.getData()) <= MAX_FRAME_SIZE;
+    }
+
+    //Length of the body of a frame, i.e. everything after the length prefix.
+    private static int bodySize(Schema schema, byte[][] fields, long[] numbers, byte[] data)
+    {
+        int size = 1;
+        if(schema.searchId)
+        {
+            size += SearchId.BYTES;
+        }
+        if(schema.hopCount)
+        {
+            size++;
+        }
+        if(schema.fields == VARIABLE)
+        {
+            size += varIntSize(fields.length);
+        }
+        for(byte[] field: fields)
+        {
+            size += varIntSize(field.length) + field.length;
+        }
+        for(long n: numbers)
+        {
+            size += varLongSize(zigZag(n));
+        }
+        if(schema.data)
+        {
+            size += varIntSize(data.length) + data.length;
+        }
+        return size;
+    }
+
+    //Decodes the next complete frame in the buffer, advancing its position past it.
+    //Returns null, leaving the position untouched, if the frame has not fully arrived yet.
+    public static Message decode(ByteBuffer buffer) throws IOException
+    {
+        if(buffer.remaining() < HEADER_SIZE)
+        {
+            return null;
+        }
+        int start = buffer.position();
+        int size = buffer.getInt(start);
+        if(size <= 0 || size > MAX_FRAME_SIZE)
+        {
+            throw new IOException("Invalid frame length " + size);
+        }
+        if(buffer.remaining() < HEADER_SIZE + size)
+        {
+            return null;
+        }
+        int end = start + HEADER_SIZE + size;
+        int limit = buffer.limit();
+        buffer.position(start + HEADER_SIZE);
+        buffer.limit(end);
+        try
+        {
+            byte type = buffer.get();
+            Schema schema = (type > 0) ? SCHEMAS[type] : null;
+            if(schema == null)
+            {
+                throw new IOException("Unknown message type " + type);
+            }
+            SearchId searchId = schema.searchId ? SearchId.read(buffer) : null;
+            int hopCount = schema.hopCount ? buffer.get() & 0xFF : 0;
+            int count = (schema.fields == VARIABLE) ? getVarInt(buffer) : schema.fields;
+            if(count < 0 || count > size)
+            {
+                throw new IOException("Invalid field count " + count);
+            }
+            String[] fields = new String[count];
+            for(int i = 0; i < count; i++)
+            {
+                fields[i] = getString(buffer);
+            }
+            long[] numbers = new long[schema.numbers];
+            for(int i = 0; i < numbers.length; i++)
+            {
+                numbers[i] = unZigZag(getVarLong(buffer));
+            }
+            byte[] data = new byte[0];
+            if(schema.data)
+            {
+                int length = getVarInt(buffer);
+                if(length < 0 || length > buffer.remaining())
+                {
+                    throw new IOException("Data length " + length + " exceeds frame");
+                }
+                data = new byte[length];
+                buffer.get(data);
+            }
+            Message message = new Message(type, searchId, hopCount, fields, numbers, data);
+            if(message.hasManifest() && !FileManifest.isValid(numbers[0], data))
+            {
+                throw new IOException("Manifest of " + data.length + " hash bytes for " + numbers[0] + " bytes");
+            }
+            return message;
+        }
+        catch(RuntimeException e)
+        {
+            throw new IOException("Malformed frame", e);
+        }
+        finally
+        {
+            buffer.limit(limit);
+            buffer.position(end);
+        }
+    }
+
+    //Reads a varint-length UTF-8 string straight out of the buffer's backing array when it has one.
+    private static String getString(ByteBuffer buffer)
+    {
+        int length = getVarInt(buffer);
+        if(length < 0 || length > buffer.remaining())
+        {
+            throw new IllegalArgumentException("Field length " + length + " exceeds frame");
+        }
+        String value;
+        if(buffer.hasArray())
+        {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        }
+        else
+        {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    static void putVarInt(ByteBuffer buffer, int value)
+    {
+        while((value & ~0x7F) != 0)
+        {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarInt(ByteBuffer buffer)
+    {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7)
+        {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    static int varIntSize(int value)
+    {
+        int size = 1;
+        while((value & ~0x7F) != 0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value)
+    {
+        while((value & ~0x7FL) != 0)
+        {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer)
+    {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7)
+        {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varlong too long");
+    }
+
+    static int varLongSize(long value)
+    {
+        int size = 1;
+        while((value & ~0x7FL) != 0)
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    //Which parts of the body a message type carries.
+    private static class Schema
+    {
+        private final boolean searchId;
+        private final boolean hopCount;
+        private final int fields;
+        private final int numbers;
+        private final boolean data;
+
+        Schema(boolean searchId, boolean hopCount, int fields, int numbers, boolean data)
+        {
+            this.searchId = searchId;
+            this.hopCount = hopCount;
+            this.fields = fields;
+            this.numbers = numbers;
+            this.data = data;
+        }
+    }
+}